@@ -0,0 +1,62 @@
+package vq.bench;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+public class BenchmarkImages {
+    // Image sources a benchmark can be parameterized with
+    public static final String CORPUS = "corpus";// first image of images/Nature, scaled to size
+    public static final String SYNTHETIC = "synthetic";// seeded gradients and noise
+
+    // Square test image of the given size, in the 3-byte BGR layout ImageIO gives JPEGs
+    public static BufferedImage image(String source, int size) throws IOException {
+        switch (source) {
+            case CORPUS:
+                return corpus(size);
+            case SYNTHETIC:
+                return synthetic(size, 42L);
+            default:
+                throw new IllegalArgumentException("Unknown image source: " + source);
+        }
+    }
+
+    // The images directory is found relative to the working directory unless -Dvq.images points elsewhere
+    private static BufferedImage corpus(int size) throws IOException {
+        List<File> files = Pipeline.listImages(System.getProperty("vq.images", "images") + "/Nature");
+        if (files.isEmpty()) {
+            throw new IOException("No corpus images found, run from the project root or set -Dvq.images");
+        }
+        BufferedImage source = ImageIO.read(files.get(0));
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, size, size, null);
+        g.dispose();
+        return image;
+    }
+
+    // Smooth per-channel gradients with a little noise, so blocks are neither all alike nor all distinct
+    private static BufferedImage synthetic(int size, long seed) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        Random rand = new Random(seed);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int r = clamp(x * 255 / size + rand.nextInt(16) - 8);
+                int g = clamp(y * 255 / size + rand.nextInt(16) - 8);
+                int b = clamp((x + y) * 255 / (2 * size) + rand.nextInt(16) - 8);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
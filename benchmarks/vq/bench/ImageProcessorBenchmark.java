@@ -0,0 +1,75 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageProcessorBenchmark {
+    @Param({BenchmarkImages.CORPUS, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    @Param({"256", "1024", "2048"})
+    public int size;
+
+    @Param({"256"})
+    public int codebookSize;
+
+    private BufferedImage image;
+    private int[][] codebook;
+    private int[] indices;
+    private byte[][] planes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = BenchmarkImages.image(source, size);
+        byte[] blocks = Pipeline.extractPackedBlocks(image, 'R');
+        codebook = Pipeline.generateCodebook(blocks, codebookSize, 42L, null);
+        indices = Pipeline.compressComponent(blocks, codebook, null);
+        planes = Pipeline.extractPlanes(image, "RGB");
+    }
+
+    // Original getRGB-based extraction into a list of int[4]
+    @Benchmark
+    public List<int[]> extractBlocks() {
+        return Pipeline.extractBlocks(image, 'R');
+    }
+
+    @Benchmark
+    public byte[][] extractPackedBlocks() {
+        return Pipeline.extractPackedBlocks(image, "RGB");
+    }
+
+    @Benchmark
+    public BufferedImage reconstructComponent() {
+        return Pipeline.reconstructComponent(indices, codebook, size, size);
+    }
+
+    @Benchmark
+    public byte[] reconstructPlane() {
+        return Pipeline.reconstructPlane(indices, codebook, size, size);
+    }
+
+    @Benchmark
+    public BufferedImage combineRGB() {
+        return Pipeline.combineRGB(planes[0], planes[1], planes[2], size, size);
+    }
+}
@@ -0,0 +1,275 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// JMH refuses benchmarks in the default package, and a named package cannot import the default-package pipeline
+// classes, so the benchmarks reach them through method handles. The handles are static finals, which the JIT
+// folds into direct calls, so they add nothing to the measured time.
+final class Pipeline {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final int BLOCK_LENGTH = blockLength();
+
+    private static final MethodHandle LIST_IMAGES = find("ImageProcessor", "listImages",
+            MethodType.methodType(List.class, String.class));
+    private static final MethodHandle EXTRACT_BLOCKS = find("ImageProcessor", "extractBlocks",
+            MethodType.methodType(List.class, BufferedImage.class, char.class));
+    private static final MethodHandle EXTRACT_PACKED = findWithDefaultShape();
+    private static final MethodHandle EXTRACT_PLANES = find("ImageProcessor", "extractPlanes",
+            MethodType.methodType(byte[][].class, BufferedImage.class, String.class));
+    private static final MethodHandle RECONSTRUCT_COMPONENT = find("ImageProcessor", "reconstructComponent",
+            MethodType.methodType(BufferedImage.class, int[].class, int[][].class, int.class, int.class));
+    private static final MethodHandle RECONSTRUCT_PLANE = find("ImageProcessor", "reconstructPlane",
+            MethodType.methodType(byte[].class, int[].class, int[][].class, int.class, int.class));
+    private static final MethodHandle COMBINE_RGB = find("ImageProcessor", "combineRGB",
+            MethodType.methodType(BufferedImage.class, byte[].class, byte[].class, byte[].class, int.class, int.class));
+
+    private static final MethodHandle GENERATE_CODEBOOK = find("VectorQuantizer", "generateCodebook",
+            MethodType.methodType(int[][].class, byte[].class, int.class, long.class, ForkJoinPool.class));
+    private static final MethodHandle GENERATE_CODEBOOK_OPTIONS = findWithOptions();
+    private static final MethodHandle COMPRESS_COMPONENT = find("VectorQuantizer", "compressComponent",
+            MethodType.methodType(int[].class, byte[].class, int[][].class, ForkJoinPool.class));
+    private static final MethodHandle NEW_SEARCH = constructor("CodebookSearch",
+            MethodType.methodType(void.class, int[][].class));
+    private static final MethodHandle NEAREST = virtual("CodebookSearch", "nearest",
+            MethodType.methodType(int.class, byte[].class, int.class));
+
+    private static final MethodHandle RGB_TO_YUV = find("YUVConverter", "rgbToYUV",
+            MethodType.methodType(BufferedImage[].class, BufferedImage.class));
+    private static final MethodHandle RGB_TO_YUV420 = find("YUVConverter", "rgbToYUV420",
+            MethodType.methodType(byte[][].class, BufferedImage.class));
+    private static final MethodHandle YUV_TO_RGB = find("YUVConverter", "yuvToRGB",
+            MethodType.methodType(BufferedImage.class, BufferedImage.class, BufferedImage.class, BufferedImage.class));
+    private static final MethodHandle YUV420_TO_RGB = find("YUVConverter", "yuv420ToRGB",
+            MethodType.methodType(BufferedImage.class, byte[].class, byte[].class, byte[].class, int.class, int.class));
+
+    private Pipeline() {
+    }
+
+    private static Class<?> type(String name) throws ClassNotFoundException {
+        return Class.forName(name, true, Pipeline.class.getClassLoader());
+    }
+
+    private static MethodHandle find(String owner, String name, MethodType methodType) {
+        try {
+            return LOOKUP.findStatic(type(owner), name, methodType);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, MethodType methodType) {
+        try {
+            return LOOKUP.findConstructor(type(owner), methodType).asType(methodType.changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(String owner, String name, MethodType methodType) {
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(type(owner), name, methodType);
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static int blockLength() {
+        try {
+            return (int) LOOKUP.findStaticGetter(type("VectorQuantizer"), "BLOCK_LENGTH", int.class).invokeExact();
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // extractPackedBlocks(BufferedImage, String, BlockShape) with the shape bound to BlockShape.DEFAULT (2x2)
+    private static MethodHandle findWithDefaultShape() {
+        try {
+            Class<?> shape = type("BlockShape");
+            MethodHandle handle = LOOKUP.findStatic(type("ImageProcessor"), "extractPackedBlocks",
+                    MethodType.methodType(byte[][].class, BufferedImage.class, String.class, shape));
+            Object defaultShape = LOOKUP.findStaticGetter(shape, "DEFAULT", shape).invoke();
+            return MethodHandles.insertArguments(handle, 2, defaultShape);
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // generateCodebook(byte[], int, KMeansOptions) with the options passed as Object
+    private static MethodHandle findWithOptions() {
+        try {
+            Class<?> options = type("KMeansOptions");
+            MethodHandle handle = LOOKUP.findStatic(type("VectorQuantizer"), "generateCodebook",
+                    MethodType.methodType(int[][].class, byte[].class, int.class, options));
+            return handle.asType(handle.type().changeParameterType(2, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // KMeansOptions running a fixed number of iterations from random seeding
+    static Object kMeansOptions(int maxIterations, long seed, ForkJoinPool pool) {
+        try {
+            Class<?> type = type("KMeansOptions");
+            Object options = type.getConstructor().newInstance();
+            type.getMethod("maxIterations", int.class).invoke(options, maxIterations);
+            type.getMethod("seed", long.class).invoke(options, seed);
+            type.getMethod("pool", ForkJoinPool.class).invoke(options, pool);
+            return options;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<File> listImages(String directory) {
+        try {
+            return (List<File>) LIST_IMAGES.invokeExact(directory);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<int[]> extractBlocks(BufferedImage image, char component) {
+        try {
+            return (List<int[]>) EXTRACT_BLOCKS.invokeExact(image, component);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static byte[] extractPackedBlocks(BufferedImage image, char component) {
+        return extractPackedBlocks(image, String.valueOf(component))[0];
+    }
+
+    static byte[][] extractPackedBlocks(BufferedImage image, String components) {
+        try {
+            return (byte[][]) EXTRACT_PACKED.invokeExact(image, components);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static byte[][] extractPlanes(BufferedImage image, String components) {
+        try {
+            return (byte[][]) EXTRACT_PLANES.invokeExact(image, components);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage reconstructComponent(int[] indices, int[][] codebook, int width, int height) {
+        try {
+            return (BufferedImage) RECONSTRUCT_COMPONENT.invokeExact(indices, codebook, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static byte[] reconstructPlane(int[] indices, int[][] codebook, int width, int height) {
+        try {
+            return (byte[]) RECONSTRUCT_PLANE.invokeExact(indices, codebook, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage combineRGB(byte[] r, byte[] g, byte[] b, int width, int height) {
+        try {
+            return (BufferedImage) COMBINE_RGB.invokeExact(r, g, b, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int[][] generateCodebook(byte[] blocks, int codebookSize, long seed, ForkJoinPool pool) {
+        try {
+            return (int[][]) GENERATE_CODEBOOK.invokeExact(blocks, codebookSize, seed, pool);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int[][] generateCodebook(byte[] blocks, int codebookSize, Object options) {
+        try {
+            return (int[][]) GENERATE_CODEBOOK_OPTIONS.invokeExact(blocks, codebookSize, options);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int[] compressComponent(byte[] blocks, int[][] codebook, ForkJoinPool pool) {
+        try {
+            return (int[]) COMPRESS_COMPONENT.invokeExact(blocks, codebook, pool);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // A CodebookSearch, typed as Object
+    static Object codebookSearch(int[][] codebook) {
+        try {
+            return (Object) NEW_SEARCH.invokeExact(codebook);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int nearest(Object search, byte[] blocks, int offset) {
+        try {
+            return (int) NEAREST.invokeExact(search, blocks, offset);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage[] rgbToYUV(BufferedImage image) {
+        try {
+            return (BufferedImage[]) RGB_TO_YUV.invokeExact(image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static byte[][] rgbToYUV420(BufferedImage image) {
+        try {
+            return (byte[][]) RGB_TO_YUV420.invokeExact(image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage yuvToRGB(BufferedImage y, BufferedImage u, BufferedImage v) {
+        try {
+            return (BufferedImage) YUV_TO_RGB.invokeExact(y, u, v);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage yuv420ToRGB(byte[] y, byte[] u, byte[] v, int width, int height) {
+        try {
+            return (BufferedImage) YUV420_TO_RGB.invokeExact(y, u, v, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
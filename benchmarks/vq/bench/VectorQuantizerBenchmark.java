@@ -0,0 +1,84 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VectorQuantizerBenchmark {
+    @Param({BenchmarkImages.CORPUS, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"64", "256", "1024"})
+    public int codebookSize;
+
+    // 1 runs the serial code path, no pool
+    @Param({"1", "4"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private byte[] blocks;
+    private int[][] codebook;
+    private Object search;
+    private Object oneIteration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BufferedImage image = BenchmarkImages.image(source, size);
+        blocks = Pipeline.extractPackedBlocks(image, 'R');
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        codebook = Pipeline.generateCodebook(blocks, codebookSize, 42L, pool);
+        search = Pipeline.codebookSearch(codebook);
+        oneIteration = Pipeline.kMeansOptions(1, 42L, pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    // Random seeding plus one Lloyd iteration, the unit the training time scales with
+    @Benchmark
+    public int[][] generateCodebook() {
+        return Pipeline.generateCodebook(blocks, codebookSize, oneIteration);
+    }
+
+    @Benchmark
+    public int[] compressComponent() {
+        return Pipeline.compressComponent(blocks, codebook, pool);
+    }
+
+    // Nearest-codeword search one block at a time, always serial
+    @Benchmark
+    public int findNearestCentroid() {
+        int checksum = 0;
+        for (int offset = 0; offset < blocks.length; offset += Pipeline.BLOCK_LENGTH) {
+            checksum += Pipeline.nearest(search, blocks, offset);
+        }
+        return checksum;
+    }
+}
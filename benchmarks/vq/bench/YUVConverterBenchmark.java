@@ -0,0 +1,63 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YUVConverterBenchmark {
+    @Param({BenchmarkImages.CORPUS, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    @Param({"256", "1024", "2048"})
+    public int size;
+
+    private BufferedImage image;
+    private BufferedImage[] yuvImages;
+    private byte[][] yuv420;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = BenchmarkImages.image(source, size);
+        yuvImages = Pipeline.rgbToYUV(image);
+        yuv420 = Pipeline.rgbToYUV420(image);
+    }
+
+    // Full-resolution Y, U and V as gray images
+    @Benchmark
+    public BufferedImage[] rgbToYUV() {
+        return Pipeline.rgbToYUV(image);
+    }
+
+    @Benchmark
+    public byte[][] rgbToYUV420() {
+        return Pipeline.rgbToYUV420(image);
+    }
+
+    @Benchmark
+    public BufferedImage yuvToRGB() {
+        return Pipeline.yuvToRGB(yuvImages[0], yuvImages[1], yuvImages[2]);
+    }
+
+    @Benchmark
+    public BufferedImage yuv420ToRGB() {
+        return Pipeline.yuv420ToRGB(yuv420[0], yuv420[1], yuv420[2], size, size);
+    }
+}
@@ -0,0 +1,348 @@
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+public class BatchCompressor {
+    private final int colorSpace;
+    private final BlockShape shape;
+    private final int[][][] codebooks;
+    private final boolean sharedCodebooks;
+    private final int queueCapacity;
+    private final int decoders;
+    private final int encoders;
+    private final int writers;
+    private final long streamPixels;
+
+    // Decode -> encode -> write pipeline over many image files. Every worker is a virtual thread; the stages are
+    // joined by queues of queueCapacity images, so a stage that runs ahead blocks instead of piling up images.
+    // At most decoders + queueCapacity + encoders decoded images are alive at once.
+    // Images of more than streamPixels pixels stay with their decoder and go through StreamingEncoder, which writes
+    // the file band by band, so a large image never sits in a queue or has its whole planes of blocks in memory.
+    public BatchCompressor(int colorSpace, BlockShape shape, int[][][] codebooks, boolean sharedCodebooks,
+                           int queueCapacity, int decoders, int encoders, int writers, long streamPixels) {
+        this.colorSpace = colorSpace;
+        this.shape = shape;
+        this.codebooks = codebooks;
+        this.sharedCodebooks = sharedCodebooks;
+        this.queueCapacity = queueCapacity;
+        this.decoders = decoders;
+        this.encoders = encoders;
+        this.writers = writers;
+        this.streamPixels = streamPixels;
+    }
+
+    // Time spent by images in one stage
+    public static class Stage {
+        public final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void record(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : nanos.sum() / 1e6 / n;
+        }
+
+        public double maxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    // Throughput and per-stage latency of one batch, readable while the batch is running
+    public static class Stats {
+        public final Stage decode = new Stage("decode");
+        public final Stage encode = new Stage("encode");
+        public final Stage write = new Stage("write");
+        public final Stage stream = new Stage("stream");// decode, encode and write of a streamed image
+        public final Stage total = new Stage("total");// first read to file written, queue waits included
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final long start = System.nanoTime();
+        private volatile long end;
+
+        public long images() {
+            return write.count() + stream.count();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public double seconds() {
+            return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+        }
+
+        public double imagesPerSecond() {
+            return images() / Math.max(seconds(), 1e-9);
+        }
+
+        public String summary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%d images (%d failed) in %.1f s, %.2f images/s, %.1f MB in, %.1f MB out",
+                    images(), failures(), seconds(), imagesPerSecond(), bytesIn.sum() / 1e6, bytesOut.sum() / 1e6));
+            for (Stage stage : new Stage[]{decode, encode, write, stream, total}) {
+                sb.append(String.format(Locale.ROOT, "%n  %-6s %6d images, mean %8.2f ms, max %8.2f ms", stage.name,
+                        stage.count(), stage.meanMillis(), stage.maxMillis()));
+            }
+            return sb.toString();
+        }
+    }
+
+    // One file moving through the pipeline
+    private static class Job {
+        final Path input;
+        final Path output;
+        long started;
+        BufferedImage image;
+        CompressedImage compressed;
+
+        Job(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    // Tells a worker that its input queue is finished
+    private static final Job POISON = new Job(null, null);
+
+    // Compress every input into outputDir, keeping each file's path relative to inputRoot with .vq appended (the
+    // source extension stays, so a.jpg and a.png do not both become a.vq).
+    // Files that fail are reported and counted, the rest of the batch carries on. Workers catch everything a job
+    // throws, Errors included, since a worker that died would leave the stage before it blocked forever on put().
+    public Stats compress(List<Path> inputs, Path inputRoot, Path outputDir, Stats stats) throws InterruptedException {
+        ConcurrentLinkedQueue<Job> pending = new ConcurrentLinkedQueue<>();
+        for (Path input : inputs) {
+            String name = inputRoot.relativize(input) + ".vq";
+            pending.add(new Job(input, outputDir.resolve(name)));
+        }
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> encoded = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger liveDecoders = new AtomicInteger(decoders);
+        AtomicInteger liveEncoders = new AtomicInteger(encoders);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < decoders; i++) {
+                executor.submit(() -> {
+                    try {
+                        Job job;
+                        while ((job = pending.poll()) != null) {
+                            job.started = System.nanoTime();
+                            try {
+                                stats.bytesIn.add(Files.size(job.input));
+                                Dimension size = StreamingEncoder.imageSize(job.input.toFile());
+                                if ((long) size.width * size.height > streamPixels) {
+                                    StreamingEncoder.encode(job.input.toFile(), job.output, colorSpace, shape,
+                                            codebooks, sharedCodebooks, StreamingEncoder.DEFAULT_BAND_HEIGHT, null);
+                                    stats.bytesOut.add(Files.size(job.output));
+                                    long elapsed = System.nanoTime() - job.started;
+                                    stats.stream.record(elapsed);
+                                    stats.total.record(elapsed);
+                                    continue;
+                                }
+                                job.image = ImageIO.read(job.input.toFile());
+                                if (job.image == null) {
+                                    throw new IOException("Not a readable image");
+                                }
+                            } catch (Throwable e) {
+                                fail(stats, job, e);
+                                continue;
+                            }
+                            stats.decode.record(System.nanoTime() - job.started);
+                            decoded.put(job);
+                        }
+                    } finally {
+                        //The last decoder out stops the encoders
+                        finish(liveDecoders, decoded, encoders);
+                    }
+                    return null;
+                });
+            }
+            for (int i = 0; i < encoders; i++) {
+                executor.submit(() -> {
+                    try {
+                        Job job;
+                        while ((job = decoded.take()) != POISON) {
+                            long start = System.nanoTime();
+                            try {
+                                job.compressed = CompressedImageIO.encode(job.image, colorSpace, shape, codebooks,
+                                        sharedCodebooks, null);
+                            } catch (Throwable e) {
+                                fail(stats, job, e);
+                                continue;
+                            } finally {
+                                job.image = null;
+                            }
+                            stats.encode.record(System.nanoTime() - start);
+                            encoded.put(job);
+                        }
+                    } finally {
+                        finish(liveEncoders, encoded, writers);
+                    }
+                    return null;
+                });
+            }
+            for (int i = 0; i < writers; i++) {
+                executor.submit(() -> {
+                    Job job;
+                    while ((job = encoded.take()) != POISON) {
+                        long start = System.nanoTime();
+                        try {
+                            CompressedImageIO.write(job.compressed, job.output);
+                            stats.bytesOut.add(Files.size(job.output));
+                        } catch (Throwable e) {
+                            fail(stats, job, e);
+                            continue;
+                        } finally {
+                            job.compressed = null;
+                        }
+                        long now = System.nanoTime();
+                        stats.write.record(now - start);
+                        stats.total.record(now - job.started);
+                    }
+                    return null;
+                });
+            }
+        }
+        stats.end = System.nanoTime();
+        return stats;
+    }
+
+    private static void fail(Stats stats, Job job, Throwable e) {
+        stats.failures.increment();
+        System.err.println("Failed to compress " + job.input + ": " + e);
+    }
+
+    // Called by each worker of a stage as it exits; the last one sends one poison job per worker of the next stage
+    private static void finish(AtomicInteger live, BlockingQueue<Job> next, int nextWorkers) throws InterruptedException {
+        if (live.decrementAndGet() == 0) {
+            for (int i = 0; i < nextWorkers; i++) {
+                next.put(POISON);
+            }
+        }
+    }
+
+    // Image files under a directory, recursively, sorted by path
+    public static List<Path> listImages(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory, FileVisitOption.FOLLOW_LINKS)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().toLowerCase(Locale.ROOT).matches(".*\\.(jpe?g|png)"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    // Usage: BatchCompressor <input dir> <output dir>
+    // -Dvq.colorSpace (rgb or yuv420), -Dvq.block and -Dvq.codebookSize pick the format;
+    // -Dvq.queue, -Dvq.decoders, -Dvq.encoders and -Dvq.writers size the pipeline; images of more than
+    // -Dvq.streamPixels pixels are encoded band by band.
+    // Codebooks come from the store (-Dvq.codebooks) or are trained on -Dvq.trainFiles files spread over the input.
+    // -Dvq.metrics writes a metrics report (-Dvq.metricsReport, relative to the output dir) at the end.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("Usage: BatchCompressor <input dir> <output dir>");
+            System.exit(2);
+        }
+        Path inputDir = Paths.get(args[0]);
+        Path outputDir = Paths.get(args[1]);
+        int colorSpace = System.getProperty("vq.colorSpace", "rgb").equalsIgnoreCase("yuv420")
+                ? CompressedImage.YUV420 : CompressedImage.RGB;
+        BlockShape shape = BlockShape.parse(System.getProperty("vq.block", "2x2"));
+        int codebookSize = Integer.getInteger("vq.codebookSize", 256);
+        if (codebookSize < 16 || codebookSize > 4096) {
+            throw new IllegalArgumentException("Codebook size must be between 16 and 4096: " + codebookSize);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int queue = Integer.getInteger("vq.queue", 2 * cores);
+        int decoders = Integer.getInteger("vq.decoders", cores);
+        int encoders = Integer.getInteger("vq.encoders", cores);
+        int writers = Integer.getInteger("vq.writers", 2);
+        long streamPixels = Long.getLong("vq.streamPixels", 1L << 26);
+        List<Path> inputs = listImages(inputDir);
+        if (inputs.isEmpty()) {
+            System.err.println("No images found in " + inputDir);
+            return;
+        }
+
+        //Training files are spread evenly over the sorted inputs
+        int trainCount = Math.min(inputs.size(), Integer.getInteger("vq.trainFiles", 30));
+        List<File> trainingFiles = new ArrayList<>();
+        for (int i = 0; i < trainCount; i++) {
+            trainingFiles.add(inputs.get((int) ((long) i * inputs.size() / trainCount)).toFile());
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        KMeansOptions options = new KMeansOptions().init(KMeansOptions.Init.KMEANS_PLUS_PLUS).maxIterations(50)
+                .tolerance(0.001).seed(Long.getLong("vq.seed", 42L)).pool(pool);
+        int sampleBlocks = 1 << 20;
+        int batchBlocks = 1 << 14;
+        CodebookStore store = new CodebookStore(Paths.get(System.getProperty("vq.codebooks", "codebooks")));
+        long fingerprint = CodebookStore.fingerprint(trainingFiles, CodebookTrainer.RESERVOIR, sampleBlocks,
+                batchBlocks, options);
+        int[][][] codebooks = store.loadOrTrain(fingerprint, codebookSize, colorSpace, shape, () -> {
+            try {
+                CodebookTrainer.Result result = CodebookTrainer.train(CodebookTrainer.RESERVOIR, trainingFiles,
+                        colorSpace, shape, codebookSize, sampleBlocks, batchBlocks, options);
+                System.out.printf("Trained codebooks on %d files in %.1f s\n", trainingFiles.size(), result.nanos / 1e9);
+                return result.codebooks;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        BatchCompressor compressor = new BatchCompressor(colorSpace, shape, codebooks, false, queue, decoders,
+                encoders, writers, streamPixels);
+        Stats stats = new Stats();
+        //Progress line every few seconds while the batch runs
+        Thread progress = Thread.ofVirtual().start(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(5000);
+                    System.out.printf(Locale.ROOT, "%d/%d images, %.2f images/s\n", stats.images(), inputs.size(),
+                            stats.imagesPerSecond());
+                }
+            } catch (InterruptedException e) {
+                //Batch finished
+            }
+        });
+        compressor.compress(inputs, inputDir, outputDir, stats);
+        progress.interrupt();
+        System.out.println(stats.summary());
+        if (Metrics.ENABLED) {
+            Metrics.writeReport(outputDir.resolve(System.getProperty("vq.metricsReport", "metrics.json")));
+        }
+    }
+}
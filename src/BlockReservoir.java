@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockReservoir {
+    private final int capacity;// in blocks
+    private final int length;// values per block
+    private final byte[] sample;
+    private final Random rand;
+    private long seen;
+    private long nextReplace;// index of the next block that enters a full reservoir
+    private double w;
+
+    // Uniform sample of at most capacity blocks from a stream of packed blocks of length values each
+    public BlockReservoir(int capacity, int length, long seed) {
+        this.capacity = capacity;
+        this.length = length;
+        this.sample = new byte[capacity * length];
+        this.rand = new Random(seed);
+        this.w = Math.exp(Math.log(1 - rand.nextDouble()) / capacity);
+        this.nextReplace = capacity + skip();
+    }
+
+    // Algorithm L: jump straight to the next block that replaces a sample, instead of drawing for every block
+    private long skip() {
+        return (long) Math.floor(Math.log(1 - rand.nextDouble()) / Math.log(1 - w));
+    }
+
+    // Offer every block of a packed array to the reservoir
+    public void offer(byte[] blocks) {
+        int count = blocks.length / length;
+        int i = 0;
+        //Fill the reservoir first
+        while (i < count && seen < capacity) {
+            System.arraycopy(blocks, i * length, sample, (int) seen * length,
+                    length);
+            i++;
+            seen++;
+        }
+        while (i < count) {
+            long ahead = nextReplace - seen;
+            if (ahead >= count - i) {
+                seen += count - i;
+                return;
+            }
+            i += (int) ahead;
+            seen += ahead;
+            System.arraycopy(blocks, i * length, sample,
+                    rand.nextInt(capacity) * length, length);
+            i++;
+            seen++;
+            w *= Math.exp(Math.log(1 - rand.nextDouble()) / capacity);
+            nextReplace = seen + skip();
+        }
+    }
+
+    // Blocks seen so far
+    public long seen() {
+        return seen;
+    }
+
+    // The sampled blocks, packed
+    public byte[] sample() {
+        return Arrays.copyOf(sample, (int) Math.min(seen, capacity) * length);
+    }
+}
@@ -0,0 +1,55 @@
+public class BlockShape {
+    // The 2x2 blocks the pipeline was built around
+    public static final BlockShape DEFAULT = new BlockShape(2, 2);
+
+    public final int width;
+    public final int height;
+    public final int length;// pixel values per block, the codeword length
+
+    public BlockShape(int width, int height) {
+        if (width < 1 || height < 1 || width > 255 || height > 255 || width * height > 255) {
+            throw new IllegalArgumentException("Invalid block size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.length = width * height;
+    }
+
+    // Parse a block size written as WIDTHxHEIGHT, e.g. 4x2
+    public static BlockShape parse(String text) {
+        String[] parts = text.toLowerCase().split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid block size: " + text);
+        }
+        return new BlockShape(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+    }
+
+    // Complete blocks across a plane of the given width
+    public int blocksX(int planeWidth) {
+        return planeWidth / width;
+    }
+
+    // Complete blocks down a plane of the given height
+    public int blocksY(int planeHeight) {
+        return planeHeight / height;
+    }
+
+    public int blockCount(int planeWidth, int planeHeight) {
+        return blocksX(planeWidth) * blocksY(planeHeight);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BlockShape && ((BlockShape) o).width == width && ((BlockShape) o).height == height;
+    }
+
+    @Override
+    public int hashCode() {
+        return width * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+public class CodebookSearch {
+    private final int length;// values per codeword
+    private final int[] codewords;// codewords sorted by sum, flat
+    private final int[] sums;// sum of each sorted codeword, ascending
+    private final int[] originalIndex;// codebook index of each sorted codeword
+
+    // Build the search structure once per codebook
+    public CodebookSearch(int[][] codebook) {
+        this(flatten(codebook), codebook.length);
+    }
+
+    // Build the search structure from flat codewords, length / codewordCount values each
+    public CodebookSearch(int[] flatCodewords, int codewordCount) {
+        length = flatCodewords.length / codewordCount;
+        codewords = new int[flatCodewords.length];
+        sums = new int[codewordCount];
+        originalIndex = new int[codewordCount];
+
+        //Sort codewords by their sum (a scaled mean), keeping track of the original index
+        long[] keys = new long[codewordCount];
+        for (int i = 0; i < codewordCount; i++) {
+            int sum = 0;
+            for (int j = 0; j < length; j++) {
+                sum += flatCodewords[i * length + j];
+            }
+            keys[i] = ((long) sum << 32) | i;
+        }
+        Arrays.sort(keys);
+        for (int k = 0; k < codewordCount; k++) {
+            int i = (int) keys[k];
+            sums[k] = (int) (keys[k] >> 32);
+            originalIndex[k] = i;
+            System.arraycopy(flatCodewords, i * length, codewords, k * length, length);
+        }
+    }
+
+    private static int[] flatten(int[][] codebook) {
+        int length = codebook[0].length;
+        int[] flat = new int[codebook.length * length];
+        for (int i = 0; i < codebook.length; i++) {
+            System.arraycopy(codebook[i], 0, flat, i * length, length);
+        }
+        return flat;
+    }
+
+    // Values per codeword
+    public int length() {
+        return length;
+    }
+
+    // Nearest codeword for a block given as an int array
+    public int nearest(int[] block) {
+        int sum = 0;
+        for (int j = 0; j < length; j++) {
+            sum += block[j];
+        }
+        int best = Integer.MAX_VALUE;
+        int bestIndex = 0;
+        int start = startPosition(sum);
+        //Walk up, then down, from the codeword whose sum is closest to the block's sum
+        for (int k = start; k < sums.length; k++) {
+            int gap = sums[k] - sum;
+            if ((long) gap * gap > (long) best * length) {
+                break;
+            }
+            int base = k * length;
+            int dist = 0;
+            for (int j = 0; j < length && dist <= best; j++) {
+                int diff = block[j] - codewords[base + j];
+                dist += diff * diff;
+            }
+            if (dist < best || (dist == best && originalIndex[k] < bestIndex)) {
+                best = dist;
+                bestIndex = originalIndex[k];
+            }
+        }
+        for (int k = start - 1; k >= 0; k--) {
+            int gap = sum - sums[k];
+            if ((long) gap * gap > (long) best * length) {
+                break;
+            }
+            int base = k * length;
+            int dist = 0;
+            for (int j = 0; j < length && dist <= best; j++) {
+                int diff = block[j] - codewords[base + j];
+                dist += diff * diff;
+            }
+            if (dist < best || (dist == best && originalIndex[k] < bestIndex)) {
+                best = dist;
+                bestIndex = originalIndex[k];
+            }
+        }
+        return bestIndex;
+    }
+
+    // Nearest codeword for the packed block at offset (unsigned bytes)
+    public int nearest(byte[] blocks, int offset) {
+        int sum = 0;
+        for (int j = 0; j < length; j++) {
+            sum += blocks[offset + j] & 0xFF;
+        }
+        int best = Integer.MAX_VALUE;
+        int bestIndex = 0;
+        int start = startPosition(sum);
+        for (int k = start; k < sums.length; k++) {
+            int gap = sums[k] - sum;
+            //||x - c||^2 >= (sum(x) - sum(c))^2 / length, and sums only grow from here
+            if ((long) gap * gap > (long) best * length) {
+                break;
+            }
+            int base = k * length;
+            int dist = 0;
+            //Partial distance elimination: stop once the running distance exceeds the best so far
+            for (int j = 0; j < length && dist <= best; j++) {
+                int diff = (blocks[offset + j] & 0xFF) - codewords[base + j];
+                dist += diff * diff;
+            }
+            //Ties go to the lowest codebook index, matching a brute-force scan
+            if (dist < best || (dist == best && originalIndex[k] < bestIndex)) {
+                best = dist;
+                bestIndex = originalIndex[k];
+            }
+        }
+        for (int k = start - 1; k >= 0; k--) {
+            int gap = sum - sums[k];
+            if ((long) gap * gap > (long) best * length) {
+                break;
+            }
+            int base = k * length;
+            int dist = 0;
+            for (int j = 0; j < length && dist <= best; j++) {
+                int diff = (blocks[offset + j] & 0xFF) - codewords[base + j];
+                dist += diff * diff;
+            }
+            if (dist < best || (dist == best && originalIndex[k] < bestIndex)) {
+                best = dist;
+                bestIndex = originalIndex[k];
+            }
+        }
+        return bestIndex;
+    }
+
+    // First sorted position whose sum is >= the given sum
+    private int startPosition(int sum) {
+        int low = 0;
+        int high = sums.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sums[mid] < sum) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
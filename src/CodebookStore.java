@@ -0,0 +1,129 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Supplier;
+
+public class CodebookStore {
+    // File layout (big-endian): int magic 'VQCB', int version, long training fingerprint, int codebook size,
+    // byte colour space, byte block width, byte block height, byte vector length, byte codebook count,
+    // then every codeword value as one byte
+    public static final int MAGIC = 0x56514342;
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 25;
+
+    private final Path directory;
+
+    public CodebookStore(Path directory) {
+        this.directory = directory;
+    }
+
+    // Cheap fingerprint of a training set from file names, sizes and modification times
+    public static long fingerprint(List<File> trainingFiles) {
+        long hash = 0xcbf29ce484222325L;
+        for (File file : trainingFiles) {
+            for (char c : file.getName().toCharArray()) {
+                hash = (hash ^ c) * 0x100000001b3L;
+            }
+            hash = (hash ^ file.length()) * 0x100000001b3L;
+            hash = (hash ^ file.lastModified()) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Fingerprint of a training set together with every setting that changes the codebooks trained on it
+    public static long fingerprint(List<File> trainingFiles, String trainer, int sampleBlocks, int batchBlocks,
+                                   KMeansOptions options) {
+        return fingerprint(trainingFiles) * 31 + (trainer + "/" + sampleBlocks + "/" + batchBlocks + "/" + options.init
+                + "/" + options.maxIterations + "/" + options.tolerance + "/" + options.seed).hashCode();
+    }
+
+    // File holding the codebooks for one key
+    public Path pathFor(long fingerprint, int codebookSize, int colorSpace, BlockShape shape) {
+        return directory.resolve(String.format("codebooks-%016x-%d-%d-%s.vqcb", fingerprint, codebookSize, colorSpace,
+                shape));
+    }
+
+    // Load the codebooks trained for this key, or train them with the trainer and store them
+    public int[][][] loadOrTrain(long fingerprint, int codebookSize, int colorSpace, BlockShape shape,
+                                 Supplier<int[][][]> trainer) throws IOException {
+        int[][][] codebooks = load(fingerprint, codebookSize, colorSpace, shape);
+        if (codebooks == null) {
+            codebooks = trainer.get();
+            save(fingerprint, codebookSize, colorSpace, shape, codebooks);
+        }
+        return codebooks;
+    }
+
+    // Map the codebook file for this key, returns null if it is missing or was written for another version or key
+    public int[][][] load(long fingerprint, int codebookSize, int colorSpace, BlockShape shape) throws IOException {
+        Path path = pathFor(fingerprint, codebookSize, colorSpace, shape);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != fingerprint
+                    || buffer.getInt() != codebookSize || buffer.get() != colorSpace || (buffer.get() & 0xFF) != shape.width
+                    || (buffer.get() & 0xFF) != shape.height) {
+                return null;
+            }
+            int vectorLength = buffer.get() & 0xFF;
+            int count = buffer.get();
+            if (vectorLength != shape.length || buffer.remaining() != count * codebookSize * vectorLength) {
+                return null;
+            }
+            int[][][] codebooks = new int[count][codebookSize][vectorLength];
+            for (int[][] codebook : codebooks) {
+                for (int[] codeVector : codebook) {
+                    for (int j = 0; j < vectorLength; j++) {
+                        codeVector[j] = buffer.get() & 0xFF;
+                    }
+                }
+            }
+            return codebooks;
+        }
+    }
+
+    // Write the codebooks for this key, replacing the old file atomically
+    public void save(long fingerprint, int codebookSize, int colorSpace, BlockShape shape, int[][][] codebooks)
+            throws IOException {
+        Files.createDirectories(directory);
+        int vectorLength = codebooks[0][0].length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + codebooks.length * codebookSize * vectorLength);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(fingerprint);
+        buffer.putInt(codebookSize);
+        buffer.put((byte) colorSpace);
+        buffer.put((byte) shape.width);
+        buffer.put((byte) shape.height);
+        buffer.put((byte) vectorLength);
+        buffer.put((byte) codebooks.length);
+        for (int[][] codebook : codebooks) {
+            for (int[] codeVector : codebook) {
+                for (int value : codeVector) {
+                    buffer.put((byte) value);
+                }
+            }
+        }
+        buffer.flip();
+        Path path = pathFor(fingerprint, codebookSize, colorSpace, shape);
+        Path temp = Files.createTempFile(directory, "codebooks", ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
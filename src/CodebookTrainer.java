@@ -0,0 +1,141 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class CodebookTrainer {
+    // Training methods
+    public static final String FULL = "full";// full-batch k-means over every training block
+    public static final String RESERVOIR = "reservoir";// full-batch k-means over a bounded uniform sample
+    public static final String MINI_BATCH = "minibatch";// one streaming pass of mini-batch k-means
+
+    // Codebook structures
+    public static final String FLAT = "flat";// one codebook, every codeword a candidate for every block
+    public static final String TREE = "tree";// tree-structured codebook, encoding descends the tree
+    public static final String RESIDUAL = "residual";// two-stage codebook, the second stage quantizes the residual
+
+    // Codebooks for the three planes of a colour space, with the MSE of each on the blocks it was measured on
+    public static class Result {
+        public final int[][][] codebooks;// the quantizers' flat codebooks
+        public final Quantizer[] quantizers;
+        public final double[] mse;
+        public final long blocksSeen;// training blocks per plane (luma for YUV)
+        public final long nanos;
+
+        Result(int[][][] codebooks, double[] mse, long blocksSeen, long nanos) {
+            this(Quantizer.flat(codebooks), mse, blocksSeen, nanos);
+        }
+
+        Result(Quantizer[] quantizers, double[] mse, long blocksSeen, long nanos) {
+            this.codebooks = new int[quantizers.length][][];
+            for (int p = 0; p < quantizers.length; p++) {
+                codebooks[p] = quantizers[p].codebook();
+            }
+            this.quantizers = quantizers;
+            this.mse = mse;
+            this.blocksSeen = blocksSeen;
+            this.nanos = nanos;
+        }
+    }
+
+    // Train the three codebooks of a colour space from image files streamed band by band.
+    // Reservoir and mini-batch memory is bounded by sampleBlocks and batchBlocks, not by the training set:
+    // sampleBlocks sizes the reservoir and the mini-batch shuffle buffer. Their MSE is measured on the reservoir sample.
+    // The k-means options (initializer, stopping rule, seed, pool) apply to the full and reservoir methods;
+    // mini-batch only takes the seed.
+    public static Result train(String method, List<File> files, int colorSpace, BlockShape shape, int codebookSize,
+                               int sampleBlocks, int batchBlocks, KMeansOptions options) throws IOException {
+        long seed = options.seed();
+        ForkJoinPool pool = options.pool();
+        long start = System.nanoTime();
+        int[][][] codebooks = new int[3][][];
+        double[] mse = new double[3];
+        long seen;
+        switch (method) {
+            case FULL: {
+                byte[][] blocks = StreamingEncoder.extractPackedBlocks(files, colorSpace, shape);
+                for (int p = 0; p < 3; p++) {
+                    codebooks[p] = VectorQuantizer.generateCodebook(blocks[p], shape.length, codebookSize, options);
+                    mse[p] = VectorQuantizer.meanSquaredError(blocks[p], codebooks[p], pool);
+                }
+                seen = blocks[0].length / shape.length;
+                break;
+            }
+            case RESERVOIR:
+            case MINI_BATCH: {
+                boolean miniBatch = method.equals(MINI_BATCH);
+                BlockReservoir[] reservoirs = new BlockReservoir[3];
+                MiniBatchKMeans[] trainers = new MiniBatchKMeans[3];
+                for (int p = 0; p < 3; p++) {
+                    reservoirs[p] = new BlockReservoir(sampleBlocks, shape.length, seed + p);
+                    if (miniBatch) {
+                        trainers[p] = new MiniBatchKMeans(codebookSize, shape.length, batchBlocks, sampleBlocks,
+                                seed + p);
+                    }
+                }
+                int rows = StreamingEncoder.DEFAULT_BAND_HEIGHT;
+                StreamingEncoder.forEachBandBlocks(files, colorSpace, shape, rows, blocks -> {
+                    for (int p = 0; p < 3; p++) {
+                        reservoirs[p].offer(blocks[p]);
+                        if (miniBatch) {
+                            trainers[p].offer(blocks[p]);
+                        }
+                    }
+                });
+                for (int p = 0; p < 3; p++) {
+                    byte[] sample = reservoirs[p].sample();
+                    codebooks[p] = miniBatch ? trainers[p].codebook()
+                            : VectorQuantizer.generateCodebook(sample, shape.length, codebookSize, options);
+                    mse[p] = VectorQuantizer.meanSquaredError(sample, codebooks[p], pool);
+                }
+                seen = reservoirs[0].seen();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown training method: " + method);
+        }
+        return new Result(codebooks, mse, seen, System.nanoTime() - start);
+    }
+
+    // Train structured quantizers for the three planes with k-means on a reservoir sample of sampleBlocks blocks.
+    // FLAT is the reservoir method above. TREE grows codebookSize leaves with branching children per split; RESIDUAL
+    // splits the index bits of codebookSize between its two stages, so its expanded codebook needs no more bits.
+    public static Result trainQuantizers(String structure, List<File> files, int colorSpace, BlockShape shape,
+                                         int codebookSize, int branching, int sampleBlocks, KMeansOptions options)
+            throws IOException {
+        long start = System.nanoTime();
+        BlockReservoir[] reservoirs = new BlockReservoir[3];
+        for (int p = 0; p < 3; p++) {
+            reservoirs[p] = new BlockReservoir(sampleBlocks, shape.length, options.seed() + p);
+        }
+        StreamingEncoder.forEachBandBlocks(files, colorSpace, shape, StreamingEncoder.DEFAULT_BAND_HEIGHT, blocks -> {
+            for (int p = 0; p < 3; p++) {
+                reservoirs[p].offer(blocks[p]);
+            }
+        });
+        int bits = IndexStream.bitsFor(codebookSize);
+        int firstSize = 1 << ((bits + 1) / 2);
+        int secondSize = (codebookSize + firstSize - 1) / firstSize;
+        Quantizer[] quantizers = new Quantizer[3];
+        double[] mse = new double[3];
+        for (int p = 0; p < 3; p++) {
+            byte[] sample = reservoirs[p].sample();
+            switch (structure) {
+                case FLAT:
+                    quantizers[p] = Quantizer.flat(
+                            VectorQuantizer.generateCodebook(sample, shape.length, codebookSize, options));
+                    break;
+                case TREE:
+                    quantizers[p] = TreeQuantizer.train(sample, shape.length, codebookSize, branching, options);
+                    break;
+                case RESIDUAL:
+                    quantizers[p] = ResidualQuantizer.train(sample, shape.length, firstSize, secondSize, options);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown codebook structure: " + structure);
+            }
+            mse[p] = VectorQuantizer.meanSquaredError(sample, quantizers[p], options.pool());
+        }
+        return new Result(quantizers, mse, reservoirs[0].seen(), System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,48 @@
+public class CompressedImage {
+    // Colour spaces
+    public static final int RGB = 0;// three full-size planes R, G, B
+    public static final int YUV420 = 1;// full-size Y, U and V subsampled to half width and height
+
+    public final int width;
+    public final int height;
+    public final int colorSpace;
+    public final int blockWidth;
+    public final int blockHeight;
+    public final Plane[] planes;
+
+    public CompressedImage(int width, int height, int colorSpace, int blockWidth, int blockHeight, Plane[] planes) {
+        this.width = width;
+        this.height = height;
+        this.colorSpace = colorSpace;
+        this.blockWidth = blockWidth;
+        this.blockHeight = blockHeight;
+        this.planes = planes;
+    }
+
+    public BlockShape blockShape() {
+        return new BlockShape(blockWidth, blockHeight);
+    }
+
+    // One quantized plane: its size, its codebook (embedded or shared by id) and one packed index per block
+    public static class Plane {
+        public final int width;
+        public final int height;
+        public final int[][] codebook;
+        public final long codebookId;
+        public final boolean sharedCodebook;// true: only the id is written, readers resolve the codebook
+        public final IndexStream indices;
+
+        public Plane(int width, int height, int[][] codebook, boolean sharedCodebook, int[] indices) {
+            this(width, height, codebook, sharedCodebook, IndexStream.of(indices, IndexStream.bitsFor(codebook.length)));
+        }
+
+        public Plane(int width, int height, int[][] codebook, boolean sharedCodebook, IndexStream indices) {
+            this.width = width;
+            this.height = height;
+            this.codebook = codebook;
+            this.codebookId = CompressedImageIO.codebookId(codebook);
+            this.sharedCodebook = sharedCodebook;
+            this.indices = indices;
+        }
+    }
+}
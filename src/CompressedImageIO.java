@@ -0,0 +1,420 @@
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+public class CompressedImageIO {
+    // File layout (big-endian):
+    //   int magic 'VQIC', byte version, byte colour space, byte block width, byte block height,
+    //   int width, int height, byte plane count, then per plane:
+    //   int plane width, int plane height, byte codebook mode (0 embedded, 1 shared), long codebook id,
+    //   short codebook size, byte vector length, [embedded codewords, one byte per value],
+    //   int index count, byte bits per index, byte index coding, then for EntropyCoder.RAW the indices as an
+    //   MSB-first bit stream padded to a whole byte; for the Huffman codings one code length byte per symbol,
+    //   int payload size and the code bit stream.
+    // Version 2 had no coding byte and always raw indices. Version 1 only allowed 8 or 16 bits per index, which is
+    // the same bit stream. Both are still read.
+    public static final int MAGIC = 0x56514943;
+    public static final int VERSION = 3;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Write a compressed image through a file channel
+    public static void write(CompressedImage image, Path path) throws IOException {
+        write(image, path, EntropyCoder.RAW);
+    }
+
+    // Write with the planes' indices raw or entropy coded (an EntropyCoder coding)
+    public static void write(CompressedImage image, Path path, int coding) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            putHeader(buffer, image.width, image.height, image.colorSpace, image.blockWidth, image.blockHeight,
+                    image.planes.length);
+            BlockShape shape = image.blockShape();
+            for (int p = 0; p < image.planes.length; p++) {
+                CompressedImage.Plane plane = image.planes[p];
+                //A plane whose code would not be smaller than its raw indices is stored raw
+                long start = Metrics.start();
+                EntropyCoder.Coded coded = coding == EntropyCoder.RAW ? null : EntropyCoder.encode(plane.indices,
+                        plane.codebook.length, shape.blocksX(plane.width), coding);
+                if (coded != null) {
+                    Metrics.stop("entropy.encode", image.colorSpace, p, start);
+                }
+                int planeCoding = coded != null && coded.byteLength() < plane.indices.byteLength()
+                        ? coding : EntropyCoder.RAW;
+                ByteBuffer planeHeader = planeHeader(plane.width, plane.height, plane.codebook, plane.sharedCodebook,
+                        plane.indices.size(), plane.indices.bits(), planeCoding);
+                flush(buffer, channel);
+                writeFully(channel, planeHeader);
+                if (planeCoding == EntropyCoder.RAW) {
+                    writeIndices(plane.indices, buffer, channel);
+                } else {
+                    ByteBuffer codedHeader = ByteBuffer.allocate(coded.lengths.length + 4);
+                    codedHeader.put(coded.lengths).putInt(coded.payload.length);
+                    writeFully(channel, codedHeader.flip());
+                    writeFully(channel, ByteBuffer.wrap(coded.payload));
+                }
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    // Size of the file header in bytes
+    static final int HEADER_SIZE = 17;
+
+    static void putHeader(ByteBuffer buffer, int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                          int planeCount) {
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) colorSpace);
+        buffer.put((byte) blockWidth);
+        buffer.put((byte) blockHeight);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.put((byte) planeCount);
+    }
+
+    // Everything written for a plane before its indices, ready to be written
+    static ByteBuffer planeHeader(int width, int height, int[][] codebook, boolean sharedCodebook, int indexCount,
+                                  int bitsPerIndex, int coding) {
+        int codewordBytes = sharedCodebook ? 0 : codebook.length * codebook[0].length;
+        ByteBuffer header = ByteBuffer.allocate(26 + codewordBytes);
+        header.putInt(width);
+        header.putInt(height);
+        header.put((byte) (sharedCodebook ? 1 : 0));
+        header.putLong(codebookId(codebook));
+        header.putShort((short) codebook.length);
+        header.put((byte) codebook[0].length);
+        if (!sharedCodebook) {
+            for (int[] codeVector : codebook) {
+                for (int value : codeVector) {
+                    header.put((byte) value);
+                }
+            }
+        }
+        header.putInt(indexCount);
+        header.put((byte) bitsPerIndex);
+        header.put((byte) coding);
+        return header.flip();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // The stream's words are already the bit stream, written whole and cut to a byte at the end
+    private static void writeIndices(IndexStream indices, ByteBuffer buffer, FileChannel channel) throws IOException {
+        long[] words = indices.words();
+        int bytes = indices.byteLength();
+        int fullWords = bytes / 8;
+        for (int w = 0; w < fullWords; w++) {
+            ensure(buffer, channel, 8);
+            buffer.putLong(words[w]);
+        }
+        for (int b = 0; b < bytes % 8; b++) {
+            ensure(buffer, channel, 1);
+            buffer.put((byte) (words[fullWords] >>> (56 - 8 * b)));
+        }
+    }
+
+    // Appends index streams to a region of a file through positioned writes, carrying bits that do not fill a byte
+    // over to the next stream, so that several planes' regions can be filled band by band
+    static class IndexWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position;
+        private long pending;// bits not written yet, in the low pendingBits bits
+        private int pendingBits;
+
+        IndexWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void append(IndexStream indices) throws IOException {
+            int bits = indices.bits();
+            for (int i = 0; i < indices.size(); i++) {
+                pending = (pending << bits) | indices.get(i);
+                pendingBits += bits;
+                while (pendingBits >= 8) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    pendingBits -= 8;
+                    buffer.put((byte) (pending >>> pendingBits));
+                }
+            }
+            flush();
+        }
+
+        // Pad the last bits to a byte and write them
+        void finish() throws IOException {
+            if (pendingBits > 0) {
+                buffer.put((byte) (pending << (8 - pendingBits)));
+                pendingBits = 0;
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Read a compressed image, resolving shared codebooks by id (sharedCodebooks may be null if none are shared)
+    public static CompressedImage read(Path path, Map<Long, int[][]> sharedCodebooks) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.limit(0);
+            require(buffer, channel, HEADER_SIZE);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a compressed image: " + path);
+            }
+            //Every field is checked before it sizes an array or indexes one, so a corrupt file is an IOException
+            int version = buffer.get() & 0xFF;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported version " + version + " in " + path);
+            }
+            int colorSpace = buffer.get() & 0xFF;
+            if (colorSpace != CompressedImage.RGB && colorSpace != CompressedImage.YUV420) {
+                throw new IOException("Unknown colour space " + colorSpace + " in " + path);
+            }
+            int blockWidth = buffer.get() & 0xFF;
+            int blockHeight = buffer.get() & 0xFF;
+            if (blockWidth < 1 || blockHeight < 1 || blockWidth * blockHeight > 255) {
+                throw new IOException("Invalid block size " + blockWidth + "x" + blockHeight + " in " + path);
+            }
+            BlockShape shape = new BlockShape(blockWidth, blockHeight);
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE) {
+                throw new IOException("Invalid image size " + width + "x" + height + " in " + path);
+            }
+            int planeCount = buffer.get() & 0xFF;
+            if (planeCount != 3) {
+                throw new IOException("Invalid plane count " + planeCount + " in " + path);
+            }
+            CompressedImage.Plane[] planes = new CompressedImage.Plane[planeCount];
+            for (int p = 0; p < planes.length; p++) {
+                require(buffer, channel, 20);
+                int planeWidth = buffer.getInt();
+                int planeHeight = buffer.getInt();
+                //Planes are full size, except U and V of 4:2:0 at half width and height
+                boolean chroma = colorSpace == CompressedImage.YUV420 && p > 0;
+                if (planeWidth != (chroma ? width / 2 : width) || planeHeight != (chroma ? height / 2 : height)) {
+                    throw new IOException("Invalid plane size " + planeWidth + "x" + planeHeight + " in " + path);
+                }
+                boolean shared = buffer.get() == 1;
+                long codebookId = buffer.getLong();
+                int codebookSize = buffer.getShort() & 0xFFFF;
+                int vectorLength = buffer.get() & 0xFF;
+                if (codebookSize < 1 || vectorLength != shape.length) {
+                    throw new IOException("Invalid codebook of " + codebookSize + " x " + vectorLength + " values for "
+                            + shape + " blocks in " + path);
+                }
+                int[][] codebook;
+                if (shared) {
+                    codebook = sharedCodebooks == null ? null : sharedCodebooks.get(codebookId);
+                    if (codebook == null) {
+                        throw new IOException("Unknown shared codebook " + Long.toHexString(codebookId) + " in " + path);
+                    }
+                    if (codebook.length != codebookSize || codebook[0].length != vectorLength) {
+                        throw new IOException("Shared codebook " + Long.toHexString(codebookId)
+                                + " does not match its plane in " + path);
+                    }
+                } else {
+                    codebook = new int[codebookSize][vectorLength];
+                    for (int[] codeVector : codebook) {
+                        require(buffer, channel, vectorLength);
+                        for (int j = 0; j < vectorLength; j++) {
+                            codeVector[j] = buffer.get() & 0xFF;
+                        }
+                    }
+                }
+                require(buffer, channel, 5);
+                int indexCount = buffer.getInt();
+                if (indexCount != (long) shape.blocksX(planeWidth) * shape.blocksY(planeHeight)) {
+                    throw new IOException("Plane " + p + " has " + indexCount + " indices for "
+                            + planeWidth + "x" + planeHeight + " in " + path);
+                }
+                int bits = buffer.get() & 0xFF;
+                if (bits < 1 || bits > 31) {
+                    throw new IOException("Invalid bits per index " + bits + " in " + path);
+                }
+                int coding = EntropyCoder.RAW;
+                if (version >= 3) {
+                    require(buffer, channel, 1);
+                    coding = buffer.get() & 0xFF;
+                }
+                IndexStream indices;
+                if (coding == EntropyCoder.RAW) {
+                    indices = readIndices(buffer, channel, indexCount, bits);
+                } else if (coding == EntropyCoder.HUFFMAN || coding == EntropyCoder.CONTEXT) {
+                    byte[] lengths = readBytes(buffer, channel, EntropyCoder.alphabetSize(codebookSize, coding));
+                    require(buffer, channel, 4);
+                    byte[] payload = readBytes(buffer, channel, buffer.getInt());
+                    int blocksX = shape.blocksX(planeWidth);
+                    long start = Metrics.start();
+                    indices = EntropyCoder.decode(new EntropyCoder.Coded(lengths, payload), indexCount, bits,
+                            blocksX, coding);
+                    Metrics.stop("entropy.decode", colorSpace, p, start);
+                } else {
+                    throw new IOException("Unknown index coding " + coding + " in " + path);
+                }
+                for (int i = 0; i < indexCount; i++) {
+                    if (indices.get(i) >= codebook.length) {
+                        throw new IOException("Index " + indices.get(i) + " out of range for a codebook of "
+                                + codebook.length + " in " + path);
+                    }
+                }
+                planes[p] = new CompressedImage.Plane(planeWidth, planeHeight, codebook, shared, indices);
+                if (planes[p].codebookId != codebookId) {
+                    throw new IOException("Codebook id mismatch in " + path);
+                }
+            }
+            return new CompressedImage(width, height, colorSpace, blockWidth, blockHeight, planes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, FileChannel channel, int count) throws IOException {
+        if (count < 0) {
+            throw new IOException("Invalid length " + count);
+        }
+        byte[] bytes = new byte[count];
+        int done = 0;
+        while (done < count) {
+            require(buffer, channel, 1);
+            int chunk = Math.min(count - done, buffer.remaining());
+            buffer.get(bytes, done, chunk);
+            done += chunk;
+        }
+        return bytes;
+    }
+
+    // Read an MSB-first bit stream of count indices straight into the words of an index stream
+    private static IndexStream readIndices(ByteBuffer buffer, FileChannel channel, int count, int bits)
+            throws IOException {
+        IndexStream indices = new IndexStream(count, bits);
+        long[] words = indices.words();
+        int bytes = indices.byteLength();
+        int fullWords = bytes / 8;
+        for (int w = 0; w < fullWords; w++) {
+            require(buffer, channel, 8);
+            words[w] = buffer.getLong();
+        }
+        for (int b = 0; b < bytes % 8; b++) {
+            require(buffer, channel, 1);
+            words[fullWords] |= (long) (buffer.get() & 0xFF) << (56 - 8 * b);
+        }
+        return indices;
+    }
+
+    // Quantize a whole decoded image in memory, the in-memory counterpart of StreamingEncoder.encode
+    public static CompressedImage encode(BufferedImage image, int colorSpace, BlockShape shape, int[][][] codebooks,
+                                         boolean sharedCodebooks, ForkJoinPool pool) {
+        return encode(image, colorSpace, shape, Quantizer.flat(codebooks), sharedCodebooks, pool);
+    }
+
+    // Quantize with one quantizer per plane (flat, tree-structured or residual); each plane stores the codebook
+    // its quantizer's indices refer to, so decoding does not depend on how the indices were chosen
+    public static CompressedImage encode(BufferedImage image, int colorSpace, BlockShape shape,
+                                         Quantizer[] quantizers, boolean sharedCodebooks, ForkJoinPool pool) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[][] blocks;
+        int[] planeWidths = {width, width, width};
+        int[] planeHeights = {height, height, height};
+        if (colorSpace == CompressedImage.YUV420) {
+            byte[][] yuv = YUVConverter.rgbToYUV420(image);
+            planeWidths[1] = planeWidths[2] = width / 2;
+            planeHeights[1] = planeHeights[2] = height / 2;
+            blocks = new byte[3][];
+            for (int p = 0; p < 3; p++) {
+                blocks[p] = ImageProcessor.extractPackedBlocks(yuv[p], planeWidths[p], planeHeights[p], shape);
+            }
+        } else {
+            blocks = ImageProcessor.extractPackedBlocks(image, "RGB", shape);
+        }
+        CompressedImage.Plane[] planes = new CompressedImage.Plane[3];
+        for (int p = 0; p < 3; p++) {
+            long start = Metrics.start();
+            IndexStream indices = VectorQuantizer.compress(blocks[p], quantizers[p], pool);
+            Metrics.stop("quantize", colorSpace, p, start);
+            planes[p] = new CompressedImage.Plane(planeWidths[p], planeHeights[p], quantizers[p].codebook(),
+                    sharedCodebooks, indices);
+        }
+        return new CompressedImage(width, height, colorSpace, shape.width, shape.height, planes);
+    }
+
+    // Reconstruct the colour image held by a compressed image
+    public static BufferedImage decode(CompressedImage image) {
+        byte[][] planes = new byte[image.planes.length][];
+        for (int p = 0; p < planes.length; p++) {
+            CompressedImage.Plane plane = image.planes[p];
+            long start = Metrics.start();
+            planes[p] = ImageProcessor.reconstructPlane(plane.indices, plane.codebook, plane.width, plane.height,
+                    image.blockShape());
+            Metrics.stop("reconstruct", image.colorSpace, p, start);
+        }
+        if (image.colorSpace == CompressedImage.YUV420) {
+            return YUVConverter.yuv420ToRGB(planes[0], planes[1], planes[2], image.width, image.height);
+        }
+        return ImageProcessor.combineRGB(planes[0], planes[1], planes[2], image.width, image.height);
+    }
+
+    // 64-bit FNV-1a hash of a codebook, used as its id
+    public static long codebookId(int[][] codebook) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ codebook.length) * 0x100000001b3L;
+        hash = (hash ^ codebook[0].length) * 0x100000001b3L;
+        for (int[] codeVector : codebook) {
+            for (int value : codeVector) {
+                hash = (hash ^ value) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    // Flush the buffer to the channel if fewer than n bytes are free
+    private static void ensure(ByteBuffer buffer, FileChannel channel, int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush(buffer, channel);
+        }
+    }
+
+    // Write out everything put into the buffer so far
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    // Refill the buffer from the channel until at least n bytes can be read
+    private static void require(ByteBuffer buffer, FileChannel channel, int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < n) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated compressed image");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+public class EntropyCoder {
+    // Index codings, stored per plane
+    public static final int RAW = 0;// fixed-width bit stream
+    public static final int HUFFMAN = 1;// canonical Huffman code built from the plane's index histogram
+    public static final int CONTEXT = 2;// canonical Huffman over 0 = same as left, 1 = same as above, else index + 2
+
+    static final int MAX_CODE_LENGTH = 24;
+    private static final int LOOKUP_BITS = 11;// codes up to this long decode with a single table lookup
+
+    // A plane's coded indices: the code length of every symbol (0 if unused) and the MSB-first code bit stream
+    public static class Coded {
+        public final byte[] lengths;
+        public final byte[] payload;
+
+        Coded(byte[] lengths, byte[] payload) {
+            this.lengths = lengths;
+            this.payload = payload;
+        }
+
+        // Bytes as stored: the lengths, the payload size and the payload
+        public int byteLength() {
+            return lengths.length + 4 + payload.length;
+        }
+    }
+
+    // Parse a coding name as used on the command line: none, huffman or context
+    public static int parseCoding(String name) {
+        switch (name.toLowerCase()) {
+            case "none":
+            case "raw":
+                return RAW;
+            case "huffman":
+                return HUFFMAN;
+            case "context":
+                return CONTEXT;
+            default:
+                throw new IllegalArgumentException("Unknown index coding: " + name);
+        }
+    }
+
+    // Symbols per coding for a codebook of codebookSize codewords
+    public static int alphabetSize(int codebookSize, int coding) {
+        return coding == CONTEXT ? codebookSize + 2 : codebookSize;
+    }
+
+    // Huffman-code a plane's indices, blocksX blocks per row. Two passes: histogram, then codes.
+    public static Coded encode(IndexStream indices, int codebookSize, int blocksX, int coding) {
+        int[] symbols = symbols(indices, blocksX, coding);
+        long[] frequencies = new long[alphabetSize(codebookSize, coding)];
+        for (int symbol : symbols) {
+            frequencies[symbol]++;
+        }
+        byte[] lengths = codeLengths(frequencies, MAX_CODE_LENGTH);
+        int[] codes = canonicalCodes(lengths);
+        long totalBits = 0;
+        for (int s = 0; s < lengths.length; s++) {
+            totalBits += frequencies[s] * lengths[s];
+        }
+
+        //Exact size from the histogram, so the payload is written straight into its final array
+        byte[] payload = new byte[(int) ((totalBits + 7) >>> 3)];
+        long acc = 0;
+        int accBits = 0;
+        int pos = 0;
+        for (int symbol : symbols) {
+            int length = lengths[symbol];
+            acc = (acc << length) | codes[symbol];
+            accBits += length;
+            while (accBits >= 8) {
+                accBits -= 8;
+                payload[pos++] = (byte) (acc >>> accBits);
+            }
+        }
+        if (accBits > 0) {
+            payload[pos] = (byte) (acc << (8 - accBits));
+        }
+        return new Coded(lengths, payload);
+    }
+
+    // Symbol of every index. With context modelling the left and upper neighbours are tracked in a row buffer:
+    // row[x] still holds the index above until it is overwritten. The first row sees zeros above, the first column
+    // uses the index above as its left neighbour.
+    private static int[] symbols(IndexStream indices, int blocksX, int coding) {
+        int[] symbols = new int[indices.size()];
+        if (coding != CONTEXT) {
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = indices.get(i);
+            }
+            return symbols;
+        }
+        int[] row = new int[blocksX];
+        for (int i = 0, x = 0; i < symbols.length; i++, x = x + 1 == blocksX ? 0 : x + 1) {
+            int index = indices.get(i);
+            int up = row[x];
+            int left = x > 0 ? row[x - 1] : up;
+            symbols[i] = index == left ? 0 : index == up ? 1 : index + 2;
+            row[x] = index;
+        }
+        return symbols;
+    }
+
+    // Decode count indices of bits bits each, blocksX blocks per row
+    public static IndexStream decode(Coded coded, int count, int bits, int blocksX, int coding) throws IOException {
+        Decoder decoder = new Decoder(coded.lengths);
+        IndexStream indices = new IndexStream(count, bits);
+        byte[] payload = coded.payload;
+        long buffer = 0;// next bits, MSB first
+        int bufferBits = 0;
+        int pos = 0;
+        int[] row = coding == CONTEXT ? new int[blocksX] : null;
+        for (int i = 0, x = 0; i < count; i++, x = x + 1 == blocksX ? 0 : x + 1) {
+            //Refill to at least 56 bits, padding with zeros past the end
+            while (bufferBits <= 56) {
+                if (pos < payload.length) {
+                    buffer |= (long) (payload[pos] & 0xFF) << (56 - bufferBits);
+                }
+                pos++;
+                bufferBits += 8;
+            }
+            int entry = decoder.lookup[(int) (buffer >>> (64 - LOOKUP_BITS))];
+            int symbol;
+            int length;
+            if (entry != 0) {
+                symbol = entry >>> 5;
+                length = entry & 31;
+            } else {
+                //Longer codes: canonical codes of each length are consecutive
+                length = LOOKUP_BITS + 1;
+                while (true) {
+                    if (length > decoder.maxLength) {
+                        throw new IOException("Corrupt index stream");
+                    }
+                    int code = (int) (buffer >>> (64 - length));
+                    int offset = code - decoder.firstCode[length];
+                    if (offset >= 0 && offset < decoder.count[length]) {
+                        symbol = decoder.sorted[decoder.firstSymbol[length] + offset];
+                        break;
+                    }
+                    length++;
+                }
+            }
+            buffer <<= length;
+            bufferBits -= length;
+            if (pos > payload.length + 8) {
+                throw new IOException("Index stream ends early");
+            }
+
+            int index;
+            if (row == null) {
+                index = symbol;
+            } else {
+                int up = row[x];
+                int left = x > 0 ? row[x - 1] : up;
+                index = symbol == 0 ? left : symbol == 1 ? up : symbol - 2;
+                row[x] = index;
+            }
+            indices.set(i, index);
+        }
+        return indices;
+    }
+
+    // Decoding tables of one canonical code, built once per plane
+    private static class Decoder {
+        final int[] lookup = new int[1 << LOOKUP_BITS];// symbol << 5 | length for codes up to LOOKUP_BITS, else 0
+        final int[] firstCode = new int[MAX_CODE_LENGTH + 1];
+        final int[] firstSymbol = new int[MAX_CODE_LENGTH + 1];// position of the first code of a length in sorted
+        final int[] count = new int[MAX_CODE_LENGTH + 1];
+        final int[] sorted;// symbols ordered by code
+        final int maxLength;
+
+        Decoder(byte[] lengths) throws IOException {
+            int max = 0;
+            int used = 0;
+            for (byte length : lengths) {
+                if (length < 0 || length > MAX_CODE_LENGTH) {
+                    throw new IOException("Invalid code length " + length);
+                }
+                count[length]++;
+                max = Math.max(max, length);
+                used += length > 0 ? 1 : 0;
+            }
+            count[0] = 0;
+            //Lengths that over-subscribe the code space (Kraft sum above 1) are not a prefix code
+            long kraft = 0;
+            for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+                kraft += (long) count[length] << (MAX_CODE_LENGTH - length);
+            }
+            if (kraft > 1L << MAX_CODE_LENGTH) {
+                throw new IOException("Invalid code lengths");
+            }
+            maxLength = max;
+            sorted = new int[used];
+            int code = 0;
+            int position = 0;
+            for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+                code = (code + count[length - 1]) << 1;
+                firstCode[length] = code;
+                firstSymbol[length] = position;
+                position += count[length];
+            }
+            int[] fill = Arrays.copyOf(firstSymbol, firstSymbol.length);
+            for (int s = 0; s < lengths.length; s++) {
+                if (lengths[s] > 0) {
+                    sorted[fill[lengths[s]]++] = s;
+                }
+            }
+            int[] codes = canonicalCodes(lengths);
+            for (int s = 0; s < lengths.length; s++) {
+                int length = lengths[s];
+                if (length > 0 && length <= LOOKUP_BITS) {
+                    //Every table slot whose top bits are this code
+                    int first = codes[s] << (LOOKUP_BITS - length);
+                    Arrays.fill(lookup, first, first + (1 << (LOOKUP_BITS - length)), s << 5 | length);
+                }
+            }
+        }
+    }
+
+    // Canonical codes: shorter codes first, equal lengths in symbol order
+    static int[] canonicalCodes(byte[] lengths) {
+        int[] count = new int[MAX_CODE_LENGTH + 1];
+        for (byte length : lengths) {
+            count[length]++;
+        }
+        count[0] = 0;
+        int[] next = new int[MAX_CODE_LENGTH + 1];
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + count[length - 1]) << 1;
+            next[length] = code;
+        }
+        int[] codes = new int[lengths.length];
+        for (int s = 0; s < lengths.length; s++) {
+            if (lengths[s] > 0) {
+                codes[s] = next[lengths[s]]++;
+            }
+        }
+        return codes;
+    }
+
+    // Huffman code lengths for the frequencies, none longer than maxLength. Too deep a tree is rebuilt from halved
+    // frequencies, which flattens it; that converges long before every frequency reaches 1.
+    static byte[] codeLengths(long[] frequencies, int maxLength) {
+        byte[] lengths = new byte[frequencies.length];
+        long[] weights = frequencies.clone();
+        while (true) {
+            //Used symbols sorted by weight, ties by symbol
+            int used = 0;
+            long[] keys = new long[weights.length];
+            for (int s = 0; s < weights.length; s++) {
+                if (weights[s] > 0) {
+                    keys[used++] = weights[s] << 20 | s;
+                }
+            }
+            if (used == 0) {
+                return lengths;
+            }
+            if (used == 1) {
+                lengths[(int) (keys[0] & 0xFFFFF)] = 1;
+                return lengths;
+            }
+            Arrays.sort(keys, 0, used);
+
+            //Two-queue construction: leaves in weight order, internal nodes are created in weight order too
+            long[] weight = new long[2 * used - 1];
+            int[] parent = new int[2 * used - 1];
+            for (int i = 0; i < used; i++) {
+                weight[i] = keys[i] >>> 20;
+            }
+            int leaf = 0;
+            int inner = used;
+            for (int node = used; node < weight.length; node++) {
+                int a = leaf < used && (inner >= node || weight[leaf] <= weight[inner]) ? leaf++ : inner++;
+                int b = leaf < used && (inner >= node || weight[leaf] <= weight[inner]) ? leaf++ : inner++;
+                weight[node] = weight[a] + weight[b];
+                parent[a] = node;
+                parent[b] = node;
+            }
+
+            //Depths from the root down; parents always come after their children
+            int[] depth = new int[weight.length];
+            int deepest = 0;
+            for (int node = weight.length - 2; node >= 0; node--) {
+                depth[node] = depth[parent[node]] + 1;
+                deepest = Math.max(deepest, depth[node]);
+            }
+            if (deepest <= maxLength) {
+                for (int i = 0; i < used; i++) {
+                    lengths[(int) (keys[i] & 0xFFFFF)] = (byte) depth[i];
+                }
+                return lengths;
+            }
+            for (int s = 0; s < weights.length; s++) {
+                if (weights[s] > 0) {
+                    weights[s] = (weights[s] + 1) >>> 1;
+                }
+            }
+        }
+    }
+}
@@ -1,27 +1,127 @@
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class ImageProcessor {
-    // Load images from a directory
-    public static List<BufferedImage> loadImages(String directoryPath) throws IOException {
-        List<BufferedImage> images = new ArrayList<>();
+    // Gray value -> raw TYPE_BYTE_GRAY sample as stored by setRGB, and raw sample -> gray value as returned by getRGB
+    private static final byte[] GRAY_ENCODE = new byte[256];
+    private static final byte[] GRAY_DECODE = new byte[256];
+
+    static {
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+        for (int v = 0; v < 256; v++) {
+            probe.setRGB(0, 0, (v << 16) | (v << 8) | v);
+            GRAY_ENCODE[v] = (byte) probe.getRaster().getSample(0, 0, 0);
+            GRAY_DECODE[v] = (byte) probe.getColorModel().getRed(v);
+        }
+    }
+
+    // Where an image's pixels live. 3-byte BGR and 8-bit gray rasters are read as interleaved bytes and int RGB
+    // rasters as packed ints, straight from the data buffer; any other image goes through bulk getRGB.
+    public static class RowReader {
+        private final BufferedImage image;
+        final byte[] bytes;// interleaved samples, null unless the raster is read as bytes
+        final int[] ints;// packed 0xRRGGBB pixels, null unless the raster is read as ints
+        final int base;// data index of pixel (0, 0)
+        final int pixelStride;
+        final int scanline;
+        final byte[] lut;// raw gray sample -> value as getRGB returns it, null for colour
+        private final int[] bandOffsets;
+
+        public RowReader(BufferedImage image) {
+            this.image = image;
+            WritableRaster raster = image.getRaster();
+            SampleModel sampleModel = raster.getSampleModel();
+            DataBuffer dataBuffer = raster.getDataBuffer();
+            int type = image.getType();
+            if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY)
+                    && sampleModel instanceof ComponentSampleModel && dataBuffer.getNumBanks() == 1) {
+                ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+                pixelStride = csm.getPixelStride();
+                scanline = csm.getScanlineStride();
+                base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+                        - raster.getSampleModelTranslateX() * pixelStride;
+                bandOffsets = csm.getBandOffsets();
+                bytes = ((DataBufferByte) dataBuffer).getData();
+                ints = null;
+                //Gray samples go through the colour model's table, so values match getRGB
+                lut = type == BufferedImage.TYPE_BYTE_GRAY ? GRAY_DECODE : null;
+            } else if (type == BufferedImage.TYPE_INT_RGB && sampleModel instanceof SinglePixelPackedSampleModel
+                    && dataBuffer.getNumBanks() == 1) {
+                pixelStride = 1;
+                scanline = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+                        - raster.getSampleModelTranslateX();
+                bandOffsets = null;
+                bytes = null;
+                ints = ((DataBufferInt) dataBuffer).getData();
+                lut = null;
+            } else {
+                pixelStride = 0;
+                scanline = 0;
+                base = 0;
+                bandOffsets = null;
+                bytes = null;
+                ints = null;
+                lut = null;
+            }
+        }
+
+        // Offset within a pixel of the byte sample of channel 0 = R, 1 = G or 2 = B
+        int sampleOffset(int channel) {
+            return bandOffsets[bandOffsets.length == 1 ? 0 : channel];
+        }
+
+        // Rows y to y + count - 1 as packed 0xRRGGBB ints, image width values per row. Bits above 0xFFFFFF are
+        // unspecified.
+        public void read(int y, int count, int[] out) {
+            int width = image.getWidth();
+            if (bytes != null) {
+                int r = sampleOffset(0);
+                int g = sampleOffset(1);
+                int b = sampleOffset(2);
+                for (int row = 0; row < count; row++) {
+                    int p = base + (y + row) * scanline;
+                    int o = row * width;
+                    for (int x = 0; x < width; x++, p += pixelStride) {
+                        out[o + x] = lut != null ? (lut[bytes[p] & 0xFF] & 0xFF) * 0x010101
+                                : (bytes[p + r] & 0xFF) << 16 | (bytes[p + g] & 0xFF) << 8 | (bytes[p + b] & 0xFF);
+                    }
+                }
+            } else if (ints != null) {
+                for (int row = 0; row < count; row++) {
+                    System.arraycopy(ints, base + (y + row) * scanline, out, row * width, width);
+                }
+            } else {
+                image.getRGB(0, y, width, count, out, 0, width);
+            }
+        }
+    }
+
+    // List the .jpg files of a directory, sorted by name so that train/test splits are repeatable
+    public static List<File> listImages(String directoryPath) throws IOException {
         File dir = new File(directoryPath);
         if (!dir.exists() || !dir.isDirectory()) {
             throw new IOException("Directory not found: " + directoryPath);
         }
         // Get all .jpg files in the directory
-        File[] files = dir.listFiles((_, name) -> name.endsWith(".jpg"));
+        File[] files = dir.listFiles((parent, name) -> name.endsWith(".jpg"));
         if (files == null) {
             throw new IOException("No images found in: " + directoryPath);
         }
-        for (File file : files) {
-            images.add(ImageIO.read(file));
-        }
-        return images;
+        Arrays.sort(files);
+        return Arrays.asList(files);
     }
 
     // Extract 2x2 pixel blocks for a specific RGB component
@@ -51,52 +151,330 @@ public class ImageProcessor {
         return blocks;
     }
 
-    // Reconstruct image component from codebook indices
-    public static BufferedImage reconstructComponent(int[][] indices, int[][] codebook, int width, int height) {
-        BufferedImage component = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-        int index = 0;//Counter to keep track of which block we are on
-        for (int y = 0; y < height - 1; y += 2) {// Loop through each 2x2 block in the image
-            for (int x = 0; x < width - 1; x += 2) {
-                if (index < indices.length) {
-                    int[] codeVector = codebook[indices[index][0]];
-                    for (int i = 0; i < 2; i++) {
-                        for (int j = 0; j < 2; j++) {
-                            if (x + j < width && y + i < height) {
-                                int value = codeVector[i * 2 + j];
-                                
-                                component.setRGB(x + j, y + i, (value << 16) | (value << 8) | value);
+    // Extract blocks of the given shape for every component in one pass, shape.length values per block
+    public static byte[][] extractPackedBlocks(BufferedImage image, String components, BlockShape shape) {
+        return extractPackedBlocks(List.of(image), components, shape);
+    }
+
+    // Extract blocks of several images for every component in one pass per image
+    public static byte[][] extractPackedBlocks(List<BufferedImage> images, String components, BlockShape shape) {
+        int blockCount = 0;
+        for (BufferedImage image : images) {
+            blockCount += blockCount(image, shape);
+        }
+        byte[][] blocks = new byte[components.length()][blockCount * shape.length];
+        int blockOffset = 0;
+        for (BufferedImage image : images) {
+            extractPackedBlocks(image, components, shape, blocks, blockOffset);
+            blockOffset += blockCount(image, shape);
+        }
+        return blocks;
+    }
+
+    // Number of complete blocks of the given shape in an image
+    public static int blockCount(BufferedImage image, BlockShape shape) {
+        return shape.blockCount(image.getWidth(), image.getHeight());
+    }
+
+    // Write the blocks of the image into preallocated packed arrays (one per component), starting at blockOffset.
+    // Reads the raster directly for 3-byte BGR, int RGB and 8-bit gray images, and falls back to bulk getRGB otherwise.
+    public static void extractPackedBlocks(BufferedImage image, String components, BlockShape shape, byte[][] out,
+                                           int blockOffset) {
+        long start = Metrics.start();
+        extractImageBlocks(image, components, shape, out, blockOffset);
+        Metrics.stop("extract", start);
+        Metrics.count("extract.blocks", (long) shape.blockCount(image.getWidth(), image.getHeight()) * out.length);
+    }
+
+    private static void extractImageBlocks(BufferedImage image, String components, BlockShape shape, byte[][] out,
+                                           int blockOffset) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] channels = parseChannels(components);
+        RowReader reader = new RowReader(image);
+        if (reader.bytes != null) {
+            int[] sampleOffsets = new int[channels.length];
+            for (int k = 0; k < channels.length; k++) {
+                sampleOffsets[k] = reader.sampleOffset(channels[k]);
+            }
+            extractInterleaved(reader.bytes, reader.base, reader.pixelStride, reader.scanline, sampleOffsets,
+                    reader.lut, width, height, shape, out, blockOffset);
+        } else if (reader.ints != null) {
+            extractPacked(reader.ints, reader.base, reader.scanline, channels, width, height, shape, out, blockOffset);
+        } else {
+            //Bulk getRGB one row of blocks at a time
+            int[] rows = new int[width * shape.height];
+            for (int y = 0; y + shape.height <= height; y += shape.height) {
+                reader.read(y, shape.height, rows);
+                int rowOffset = blockOffset + (y / shape.height) * shape.blocksX(width);
+                extractPacked(rows, 0, width, channels, width, shape.height, shape, out, rowOffset);
+            }
+        }
+    }
+
+    // Map component letters to channel numbers, 0 = R, 1 = G, 2 = B
+    private static int[] parseChannels(String components) {
+        int[] channels = new int[components.length()];
+        for (int k = 0; k < channels.length; k++) {
+            switch (components.charAt(k)) {
+                case 'R': channels[k] = 0; break;
+                case 'G': channels[k] = 1; break;
+                case 'B': channels[k] = 2; break;
+                default: throw new IllegalArgumentException("Invalid component: " + components.charAt(k));
+            }
+        }
+        return channels;
+    }
+
+    // Block extraction over byte samples with a fixed pixel stride (interleaved BGR or gray).
+    // Values are packed row by row within each block; 2x2 blocks take an unrolled path.
+    private static void extractInterleaved(byte[] data, int base, int pixelStride, int scanline, int[] sampleOffsets,
+                                           byte[] lut, int width, int height, BlockShape shape, byte[][] out,
+                                           int blockOffset) {
+        int blocksX = shape.blocksX(width);
+        boolean twoByTwo = shape.width == 2 && shape.height == 2;
+        for (int by = 0; by < shape.blocksY(height); by++) {
+            int top = base + by * shape.height * scanline;
+            for (int k = 0; k < sampleOffsets.length; k++) {
+                byte[] plane = out[k];
+                int rowStart = (blockOffset + by * blocksX) * shape.length;
+                int o = rowStart;
+                int p = top + sampleOffsets[k];
+                for (int bx = 0; bx < blocksX; bx++) {
+                    if (twoByTwo) {
+                        plane[o] = data[p];
+                        plane[o + 1] = data[p + pixelStride];
+                        plane[o + 2] = data[p + scanline];
+                        plane[o + 3] = data[p + scanline + pixelStride];
+                        o += 4;
+                    } else {
+                        for (int dy = 0; dy < shape.height; dy++) {
+                            int q = p + dy * scanline;
+                            for (int dx = 0; dx < shape.width; dx++) {
+                                plane[o++] = data[q];
+                                q += pixelStride;
+                            }
+                        }
+                    }
+                    p += shape.width * pixelStride;
+                }
+                if (lut != null) {
+                    for (int j = rowStart; j < o; j++) {
+                        plane[j] = lut[plane[j] & 0xFF];
+                    }
+                }
+            }
+        }
+    }
+
+    // Block extraction over packed 0xRRGGBB ints
+    private static void extractPacked(int[] data, int base, int scanline, int[] channels,
+                                      int width, int height, BlockShape shape, byte[][] out, int blockOffset) {
+        int blocksX = shape.blocksX(width);
+        boolean twoByTwo = shape.width == 2 && shape.height == 2;
+        for (int by = 0; by < shape.blocksY(height); by++) {
+            int top = base + by * shape.height * scanline;
+            for (int k = 0; k < channels.length; k++) {
+                byte[] plane = out[k];
+                int shift = 16 - 8 * channels[k];
+                int o = (blockOffset + by * blocksX) * shape.length;
+                int p = top;
+                for (int bx = 0; bx < blocksX; bx++) {
+                    if (twoByTwo) {
+                        plane[o] = (byte) (data[p] >> shift);
+                        plane[o + 1] = (byte) (data[p + 1] >> shift);
+                        plane[o + 2] = (byte) (data[p + scanline] >> shift);
+                        plane[o + 3] = (byte) (data[p + scanline + 1] >> shift);
+                        o += 4;
+                    } else {
+                        for (int dy = 0; dy < shape.height; dy++) {
+                            int q = p + dy * scanline;
+                            for (int dx = 0; dx < shape.width; dx++) {
+                                plane[o++] = (byte) (data[q + dx] >> shift);
                             }
                         }
                     }
-                    index++;
+                    p += shape.width;
+                }
+            }
+        }
+    }
+
+    // Reconstruct image component from codebook indices
+    public static BufferedImage reconstructComponent(int[][] indices, int[][] codebook, int width, int height) {
+        int[] flat = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            flat[i] = indices[i][0];
+        }
+        return reconstructComponent(flat, codebook, width, height);
+    }
+
+    // Reconstruct image component from a flat array of codebook indices
+    public static BufferedImage reconstructComponent(int[] indices, int[][] codebook, int width, int height) {
+        return grayImage(reconstructPlane(indices, codebook, width, height), width, height);
+    }
+
+    // Reconstruct one plane (width * height values) from codebook indices, pixels outside full blocks stay 0
+    public static byte[] reconstructPlane(int[] indices, int[][] codebook, int width, int height) {
+        return reconstructPlane(indices, codebook, width, height, BlockShape.DEFAULT);
+    }
+
+    // Reconstruct one plane from the indices of blocks of the given shape
+    public static byte[] reconstructPlane(int[] indices, int[][] codebook, int width, int height, BlockShape shape) {
+        long start = Metrics.start();
+        byte[] plane = new byte[width * height];
+        int blockCount = Math.min(indices.length, shape.blockCount(width, height));
+        putBlocks(indices, 0, blockCount, codebook, plane, width, shape);
+        Metrics.stop("reconstruct", start);
+        return plane;
+    }
+
+    // Reconstruct one plane straight from a packed index stream, unpacking a run of indices at a time
+    public static byte[] reconstructPlane(IndexStream indices, int[][] codebook, int width, int height,
+                                          BlockShape shape) {
+        long start = Metrics.start();
+        byte[] plane = new byte[width * height];
+        int blockCount = Math.min(indices.size(), shape.blockCount(width, height));
+        int[] run = new int[Math.min(blockCount, 4096)];
+        for (int first = 0; first < blockCount; first += run.length) {
+            int count = Math.min(run.length, blockCount - first);
+            for (int i = 0; i < count; i++) {
+                run[i] = indices.get(first + i);
+            }
+            putBlocks(run, first, count, codebook, plane, width, shape);
+        }
+        Metrics.stop("reconstruct", start);
+        return plane;
+    }
+
+    // Write the codewords of count blocks, starting at block number firstBlock, into the plane
+    private static void putBlocks(int[] indices, int firstBlock, int count, int[][] codebook, byte[] plane, int width,
+                                  BlockShape shape) {
+        int blocksX = shape.blocksX(width);
+        boolean twoByTwo = shape.width == 2 && shape.height == 2;
+        for (int i = 0; i < count; i++) {
+            int[] codeVector = codebook[indices[i]];
+            int block = firstBlock + i;
+            int p = (block / blocksX) * shape.height * width + (block % blocksX) * shape.width;
+            if (twoByTwo) {
+                plane[p] = (byte) codeVector[0];
+                plane[p + 1] = (byte) codeVector[1];
+                plane[p + width] = (byte) codeVector[2];
+                plane[p + width + 1] = (byte) codeVector[3];
+            } else {
+                int j = 0;
+                for (int dy = 0; dy < shape.height; dy++) {
+                    for (int dx = 0; dx < shape.width; dx++) {
+                        plane[p + dy * width + dx] = (byte) codeVector[j++];
+                    }
+                }
+            }
+        }
+    }
+
+    // Split an image into full-size planes (width * height values), one per component in the string (e.g. "RGB")
+    public static byte[][] extractPlanes(BufferedImage image, String components) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] channels = parseChannels(components);
+        byte[][] planes = new byte[channels.length][width * height];
+        RowReader reader = new RowReader(image);
+        if (reader.bytes != null) {
+            byte[] data = reader.bytes;
+            byte[] lut = reader.lut;
+            for (int k = 0; k < channels.length; k++) {
+                byte[] plane = planes[k];
+                int sampleOffset = reader.sampleOffset(channels[k]);
+                for (int y = 0; y < height; y++) {
+                    int p = reader.base + y * reader.scanline + sampleOffset;
+                    int o = y * width;
+                    for (int x = 0; x < width; x++) {
+                        plane[o + x] = lut != null ? lut[data[p] & 0xFF] : data[p];
+                        p += reader.pixelStride;
+                    }
+                }
+            }
+        } else if (reader.ints != null) {
+            splitPacked(reader.ints, reader.base, reader.scanline, channels, width, height, planes, 0);
+        } else {
+            //Bulk getRGB one row at a time
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                reader.read(y, 1, row);
+                splitPacked(row, 0, width, channels, width, 1, planes, y * width);
+            }
+        }
+        return planes;
+    }
+
+    // Split packed 0xRRGGBB ints into planes, starting at planeOffset
+    private static void splitPacked(int[] data, int base, int scanline, int[] channels,
+                                    int width, int height, byte[][] planes, int planeOffset) {
+        for (int k = 0; k < channels.length; k++) {
+            byte[] plane = planes[k];
+            int shift = 16 - 8 * channels[k];
+            for (int y = 0; y < height; y++) {
+                int p = base + y * scanline;
+                int o = planeOffset + y * width;
+                for (int x = 0; x < width; x++) {
+                    plane[o + x] = (byte) (data[p + x] >> shift);
                 }
             }
         }
-        return component;
+    }
+
+    // Extract the blocks of one plane into a packed byte array
+    public static byte[] extractPackedBlocks(byte[] plane, int width, int height, BlockShape shape) {
+        byte[] blocks = new byte[shape.blockCount(width, height) * shape.length];
+        extractPackedBlocks(plane, width, height, shape, blocks, 0);
+        return blocks;
+    }
+
+    // Write the blocks of one plane into a preallocated packed array, starting at blockOffset
+    public static void extractPackedBlocks(byte[] plane, int width, int height, BlockShape shape, byte[] out,
+                                           int blockOffset) {
+        long start = Metrics.start();
+        extractInterleaved(plane, 0, 1, width, new int[]{0}, null, width, height, shape, new byte[][]{out},
+                blockOffset);
+        Metrics.stop("extract", start);
+        Metrics.count("extract.blocks", shape.blockCount(width, height));
+    }
+
+    // Wrap a plane in a TYPE_BYTE_GRAY image whose getRGB returns the plane values
+    public static BufferedImage grayImage(byte[] plane, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = GRAY_ENCODE[plane[i] & 0xFF];
+        }
+        return image;
     }
 
     // Combine RGB components into a color image
     public static BufferedImage combineRGB(BufferedImage r, BufferedImage g, BufferedImage b) {
-        int width = r.getWidth();
-        int height = r.getHeight();
+        return combineRGB(extractPlanes(r, "R")[0], extractPlanes(g, "G")[0], extractPlanes(b, "B")[0],
+                r.getWidth(), r.getHeight());
+    }
+
+    // Pack R, G and B planes into a color image, writing the int raster directly
+    public static BufferedImage combineRGB(byte[] r, byte[] g, byte[] b, int width, int height) {
         BufferedImage colorImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-       //Loop through every pixel
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int red = (r.getRGB(x, y) >> 16) & 0xFF;
-                int green = (g.getRGB(x, y) >> 8) & 0xFF;
-                int blue = b.getRGB(x, y) & 0xFF;
-                int rgb = (red << 16) | (green << 8) | blue;
-                colorImage.setRGB(x, y, rgb);
-            }
+        int[] data = ((DataBufferInt) colorImage.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < width * height; i++) {
+            data[i] = ((r[i] & 0xFF) << 16) | ((g[i] & 0xFF) << 8) | (b[i] & 0xFF);
         }
         return colorImage;
     }
 
     // Save image to file
     public static void saveImage(BufferedImage image, String path) throws IOException {
+        long start = Metrics.start();
         File outputFile = new File(path);
         outputFile.getParentFile().mkdirs(); 
         ImageIO.write(image, "png", outputFile);
+        Metrics.stop("saveImage", start);
+        if (Metrics.ENABLED) {
+            Metrics.count("saveImage.bytes", outputFile.length());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+public class IndexStream {
+    private final long[] words;
+    private final int size;
+    private final int bits;
+    private final long mask;
+
+    // Codebook indices bit-packed into longs, bits per index, most significant bit first. Written out as big-endian
+    // longs and cut to whole bytes, this is the plain MSB-first bit stream the container stores.
+    public IndexStream(int size, int bits) {
+        this(new long[(int) (((long) size * bits + 63) >>> 6)], size, bits);
+    }
+
+    IndexStream(long[] words, int size, int bits) {
+        if (bits < 1 || bits > 31) {
+            throw new IllegalArgumentException("Invalid bits per index: " + bits);
+        }
+        this.words = words;
+        this.size = size;
+        this.bits = bits;
+        this.mask = (1L << bits) - 1;
+    }
+
+    // Bits needed to index a codebook of this size
+    public static int bitsFor(int codebookSize) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(codebookSize - 1));
+    }
+
+    // Pack an index array
+    public static IndexStream of(int[] indices, int bits) {
+        IndexStream stream = new IndexStream(indices.length, bits);
+        for (int i = 0; i < indices.length; i++) {
+            stream.set(i, indices[i]);
+        }
+        return stream;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int bits() {
+        return bits;
+    }
+
+    // Bytes the stream takes on disk
+    public int byteLength() {
+        return (int) (((long) size * bits + 7) >>> 3);
+    }
+
+    // Backing words, shared
+    long[] words() {
+        return words;
+    }
+
+    public int get(int i) {
+        long bit = (long) i * bits;
+        int w = (int) (bit >>> 6);
+        int end = (int) (bit & 63) + bits;// end of the index within word w, counted from the top
+        if (end <= 64) {
+            return (int) ((words[w] >>> (64 - end)) & mask);
+        }
+        //The index straddles two words
+        int low = end - 64;
+        return (int) (((words[w] << low) | (words[w + 1] >>> (64 - low))) & mask);
+    }
+
+    // Store an index. Indices in different 64-index runs never share a word, so tasks filling disjoint runs
+    // can write concurrently.
+    public void set(int i, int value) {
+        long v = value & mask;
+        long bit = (long) i * bits;
+        int w = (int) (bit >>> 6);
+        int end = (int) (bit & 63) + bits;
+        if (end <= 64) {
+            int shift = 64 - end;
+            words[w] = (words[w] & ~(mask << shift)) | (v << shift);
+            return;
+        }
+        int low = end - 64;
+        words[w] = (words[w] & ~(mask >>> low)) | (v >>> low);
+        int shift = 64 - low;
+        words[w + 1] = (words[w + 1] & ~(mask << shift)) | (v << shift);
+    }
+
+    public int[] toArray() {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = get(i);
+        }
+        return indices;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IndexStream)) {
+            return false;
+        }
+        IndexStream other = (IndexStream) o;
+        return size == other.size && bits == other.bits && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words) * 31 + size;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.concurrent.ForkJoinPool;
+
+public class KMeansOptions {
+    // How the first centroids are chosen
+    public enum Init {
+        RANDOM,// uniform random blocks
+        KMEANS_PLUS_PLUS,// blocks drawn with probability proportional to squared distance from the chosen ones
+        LBG// start from the mean and split every codeword in two until the codebook is full
+    }
+
+    // Called after each assignment pass with the MSE per pixel value of the centroids that pass was made against
+    public interface IterationListener {
+        void iteration(int iteration, int codebookSize, double mse, long nanos);
+    }
+
+    Init init = Init.RANDOM;
+    int maxIterations = 10;
+    double tolerance = 0;
+    long seed = 42L;
+    ForkJoinPool pool;
+    IterationListener listener;
+
+    public KMeansOptions init(Init init) {
+        this.init = init;
+        return this;
+    }
+
+    // Upper bound on assignment passes, per split for LBG
+    public KMeansOptions maxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    // Stop once an iteration lowers the distortion by this fraction or less; 0 never stops early and always runs
+    // maxIterations
+    public KMeansOptions tolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public KMeansOptions seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // Pool for the assignment step, null runs serially
+    public KMeansOptions pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public KMeansOptions listener(IterationListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public ForkJoinPool pool() {
+        return pool;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    // Parse an initializer name as used on the command line: random, kmeans++ or lbg
+    public static Init parseInit(String name) {
+        switch (name.toLowerCase()) {
+            case "random":
+                return Init.RANDOM;
+            case "kmeans++":
+            case "k-means++":
+                return Init.KMEANS_PLUS_PLUS;
+            case "lbg":
+                return Init.LBG;
+            default:
+                throw new IllegalArgumentException("Unknown k-means initializer: " + name);
+        }
+    }
+}
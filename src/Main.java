@@ -1,154 +1,247 @@
+import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     public static void main(String[] args) throws IOException {
+        //Worker count and k-means seed can be set with -Dvq.threads and -Dvq.seed
+        ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("vq.threads", Runtime.getRuntime().availableProcessors()));
+        long seed = Long.getLong("vq.seed", 42L);
         String[] categories = {"Nature", "Faces", "Animals"};
-        List<BufferedImage> trainingImages = new ArrayList<>();
-        List<BufferedImage> testImages = new ArrayList<>();
+        List<File> trainingFiles = new ArrayList<>();
+        List<File> testFiles = new ArrayList<>();
         for (String category : categories) {
-            List<BufferedImage> images = ImageProcessor.loadImages("images/" + category);
-            if (images.size() != 15) {
-                System.err.println("Warning: Expected 15 images in " + category + ", found " + images.size());
+            List<File> files = ImageProcessor.listImages("images/" + category);
+            if (files.size() != 15) {
+                System.err.println("Warning: Expected 15 images in " + category + ", found " + files.size());
             }
             //Add first 10 images to training, last 5 to testing
-            for (int i = 0; i < images.size(); i++) {
+            for (int i = 0; i < files.size(); i++) {
                 if (i < 10) {
-                    trainingImages.add(images.get(i));
+                    trainingFiles.add(files.get(i));
                 } else {
-                    testImages.add(images.get(i));
+                    testFiles.add(files.get(i));
                 }
             }
         }
-        //extract color blocks from training images
-        List<int[]> redBlocks = new ArrayList<>();
-        List<int[]> greenBlocks = new ArrayList<>();
-        List<int[]> blueBlocks = new ArrayList<>();
-        for (BufferedImage img : trainingImages) {
-            redBlocks.addAll(ImageProcessor.extractBlocks(img, 'R'));
-            greenBlocks.addAll(ImageProcessor.extractBlocks(img, 'G'));
-            blueBlocks.addAll(ImageProcessor.extractBlocks(img, 'B'));
+
+        //Codebooks are trained once per training set and loaded from the store (-Dvq.codebooks) on later runs.
+        //-Dvq.trainer picks full k-means (default), reservoir-sampled k-means or streaming mini-batch k-means.
+        String trainer = System.getProperty("vq.trainer", CodebookTrainer.FULL);
+        int sampleBlocks = Integer.getInteger("vq.sampleBlocks", 1 << 20);
+        int batchBlocks = Integer.getInteger("vq.batchBlocks", 1 << 14);
+        //k-means seeding (-Dvq.init random, kmeans++ or lbg) and stopping rule (-Dvq.maxIterations, -Dvq.tolerance);
+        //-Dvq.verbose prints the distortion and time of every iteration
+        KMeansOptions.Init init = KMeansOptions.parseInit(System.getProperty("vq.init", "kmeans++"));
+        int maxIterations = Integer.getInteger("vq.maxIterations", 50);
+        double tolerance = Double.parseDouble(System.getProperty("vq.tolerance", "0.001"));
+        KMeansOptions options = new KMeansOptions().init(init).maxIterations(maxIterations).tolerance(tolerance)
+                .seed(seed).pool(pool);
+        if (Boolean.getBoolean("vq.verbose")) {
+            options.listener((iteration, size, mse, nanos) -> System.out.printf(
+                    "  k-means iteration %d (%d codewords): MSE %.2f, %.1f ms\n", iteration, size, mse, nanos / 1e6));
+        }
+        //Block size (-Dvq.block, e.g. 4x4) and codebook size (-Dvq.codebookSize, 16 to 4096) trade quality for ratio;
+        //indices take ceil(log2(codebook size)) bits each
+        BlockShape shape = BlockShape.parse(System.getProperty("vq.block", "2x2"));
+        int codebookSize = Integer.getInteger("vq.codebookSize", 256);
+        if (codebookSize < 16 || codebookSize > 4096) {
+            throw new IllegalArgumentException("Codebook size must be between 16 and 4096: " + codebookSize);
+        }
+        int bits = IndexStream.bitsFor(codebookSize);
+        //-Dvq.entropy none (default), huffman or context entropy-codes the index streams of the written files
+        int coding = EntropyCoder.parseCoding(System.getProperty("vq.entropy", "none"));
+        //-Dvq.quantizer flat (default), tree or residual picks the codebook structure. Tree (-Dvq.branching children
+        //per split) and residual codebooks encode in sublinear time; they are trained on a reservoir sample every run.
+        String structure = System.getProperty("vq.quantizer", CodebookTrainer.FLAT);
+        Quantizer[] rgbQuantizers;
+        Quantizer[] yuvQuantizers;
+        if (structure.equals(CodebookTrainer.FLAT)) {
+            CodebookStore store = new CodebookStore(Paths.get(System.getProperty("vq.codebooks", "codebooks")));
+            long fingerprint = CodebookStore.fingerprint(trainingFiles, trainer, sampleBlocks, batchBlocks, options);
+            rgbQuantizers = Quantizer.flat(store.loadOrTrain(fingerprint, codebookSize, CompressedImage.RGB, shape,
+                    () -> train(trainer, trainingFiles, CompressedImage.RGB, shape, codebookSize, sampleBlocks,
+                            batchBlocks, options)));
+            yuvQuantizers = Quantizer.flat(store.loadOrTrain(fingerprint, codebookSize, CompressedImage.YUV420, shape,
+                    () -> train(trainer, trainingFiles, CompressedImage.YUV420, shape, codebookSize, sampleBlocks,
+                            batchBlocks, options)));
+        } else {
+            int branching = Integer.getInteger("vq.branching", 2);
+            rgbQuantizers = trainQuantizers(structure, trainingFiles, CompressedImage.RGB, shape, codebookSize,
+                    branching, sampleBlocks, options);
+            yuvQuantizers = trainQuantizers(structure, trainingFiles, CompressedImage.YUV420, shape, codebookSize,
+                    branching, sampleBlocks, options);
         }
 
-        int[][] redCodebook = VectorQuantizer.generateCodebook(redBlocks, 256);
-        int[][] greenCodebook = VectorQuantizer.generateCodebook(greenBlocks, 256);
-        int[][] blueCodebook = VectorQuantizer.generateCodebook(blueBlocks, 256);
         //Iterate through each test image, get its dimensions
-        for (int i = 0; i < testImages.size(); i++) {
-            BufferedImage original = testImages.get(i);
+        for (int i = 0; i < testFiles.size(); i++) {
+            BufferedImage original = ImageIO.read(testFiles.get(i));
             int width = original.getWidth();
             int height = original.getHeight();
 
             // RGB Compression
-            List<int[]> testRedBlocks = ImageProcessor.extractBlocks(original, 'R');
-            List<int[]> testGreenBlocks = ImageProcessor.extractBlocks(original, 'G');
-            List<int[]> testBlueBlocks = ImageProcessor.extractBlocks(original, 'B');
-            //Compress each color component using the codebook generated from training images
-            int[][] redIndices = VectorQuantizer.compressComponent(testRedBlocks, redCodebook);
-            int[][] greenIndices = VectorQuantizer.compressComponent(testGreenBlocks, greenCodebook);
-            int[][] blueIndices = VectorQuantizer.compressComponent(testBlueBlocks, blueCodebook);
-
-            BufferedImage redComponent = ImageProcessor.reconstructComponent(redIndices, redCodebook, width, height);
-            BufferedImage greenComponent = ImageProcessor.reconstructComponent(greenIndices, greenCodebook, width, height);
-            BufferedImage blueComponent = ImageProcessor.reconstructComponent(blueIndices, blueCodebook, width, height);
-
-            BufferedImage reconstructed = ImageProcessor.combineRGB(redComponent, greenComponent, blueComponent);
+            //Compress each color component of the decoded image and write it with embedded codebooks
+            Path rgbFile = Paths.get("output/compressed_" + i + ".vq");
+            CompressedImageIO.write(CompressedImageIO.encode(original, CompressedImage.RGB, shape, rgbQuantizers,
+                    false, pool), rgbFile, coding);
+            //Decode the image back from disk
+            CompressedImage rgbCompressed = CompressedImageIO.read(rgbFile, null);
+            BufferedImage reconstructed = CompressedImageIO.decode(rgbCompressed);
             ImageProcessor.saveImage(reconstructed, "output/reconstructed_" + i + ".png");
 
             // RGB Compression Ratio
             long originalSize = width * height * 3L * 8;
-            long rgbCompressedSize = (long) Math.ceil((double) (width * height) / 4.0) * 8; // Single index per block
+            long rgbCompressedSize = (long) shape.blockCount(width, height) * bits; // Single index per block
             double rgbCompressionRatio = (double) originalSize / rgbCompressedSize;
             System.out.printf("Image %d RGB Compression Ratio: %.2f\n", i, rgbCompressionRatio);
             System.out.println("Image " + i + ": width=" + width + ", height=" + height + ", RGB compressedSize=" + rgbCompressedSize);
+            long rgbFileSize = Files.size(rgbFile);
+            System.out.printf("Image %d RGB File Size: %d bytes, On-Disk Compression Ratio: %.2f\n", i, rgbFileSize,
+                    (double) originalSize / (rgbFileSize * 8));
+            if (coding != EntropyCoder.RAW) {
+                reportEntropyCoding(i, "RGB", rgbCompressed, coding);
+            }
 
-            // RGB MSE
-            double mse = calculateMSE(original, reconstructed);
-            System.out.printf("Image %d RGB MSE: %.2f\n", i, mse);
+            // RGB MSE, PSNR and SSIM
+            QualityMetrics.Quality quality = QualityMetrics.compare(original, reconstructed, pool);
+            System.out.printf("Image %d RGB MSE: %.2f\n", i, quality.mse());
+            printQuality(i, "RGB", quality);
+            printPlaneMSE(i, rgbCompressed, ImageProcessor.extractPlanes(original, "RGB"), pool);
 
             // YUV Compression
             try {
-                BufferedImage[] yuv = YUVConverter.rgbToYUV(original);
-                BufferedImage yComponent = yuv[0];
-                BufferedImage uComponent = YUVConverter.subsample(yuv[1]);
-                BufferedImage vComponent = YUVConverter.subsample(yuv[2]);
-                //prepare YUV components for compression
-                List<int[]> yBlocks = new ArrayList<>();
-                List<int[]> uBlocks = new ArrayList<>();
-                List<int[]> vBlocks = new ArrayList<>();
-                for (BufferedImage img : trainingImages) {
-                    BufferedImage[] yuvTrain = YUVConverter.rgbToYUV(img);
-                    yBlocks.addAll(ImageProcessor.extractBlocks(yuvTrain[0], 'R'));
-                    uBlocks.addAll(ImageProcessor.extractBlocks(YUVConverter.subsample(yuvTrain[1]), 'R'));
-                    vBlocks.addAll(ImageProcessor.extractBlocks(YUVConverter.subsample(yuvTrain[2]), 'R'));
-                }
-
-                int[][] yCodebook = VectorQuantizer.generateCodebook(yBlocks, 256);
-                int[][] uCodebook = VectorQuantizer.generateCodebook(uBlocks, 256);
-                int[][] vCodebook = VectorQuantizer.generateCodebook(vBlocks, 256);
-                 //Extract blocks from test image YUV
-                List<int[]> testYBlocks = ImageProcessor.extractBlocks(yComponent, 'R');
-                List<int[]> testUBlocks = ImageProcessor.extractBlocks(uComponent, 'R');
-                List<int[]> testVBlocks = ImageProcessor.extractBlocks(vComponent, 'R');
-
-                int[][] yIndices = VectorQuantizer.compressComponent(testYBlocks, yCodebook);
-                int[][] uIndices = VectorQuantizer.compressComponent(testUBlocks, uCodebook);
-                int[][] vIndices = VectorQuantizer.compressComponent(testVBlocks, vCodebook);
-
-                BufferedImage reconY = ImageProcessor.reconstructComponent(yIndices, yCodebook, width, height);
-                BufferedImage reconU = ImageProcessor.reconstructComponent(uIndices, uCodebook, uComponent.getWidth(), uComponent.getHeight());
-                BufferedImage reconV = ImageProcessor.reconstructComponent(vIndices, vCodebook, vComponent.getWidth(), vComponent.getHeight());
-
-                BufferedImage upsampledU = YUVConverter.upsample(reconU, width, height);
-                BufferedImage upsampledV = YUVConverter.upsample(reconV, width, height);
-
-                BufferedImage reconstructedYUV = YUVConverter.yuvToRGB(reconY, upsampledU, upsampledV);
+                //Y at full size, U and V subsampled to 4:2:0
+                Path yuvFile = Paths.get("output/compressed_yuv_" + i + ".vq");
+                CompressedImageIO.write(CompressedImageIO.encode(original, CompressedImage.YUV420, shape, yuvQuantizers,
+                        false, pool), yuvFile, coding);
+                //Upsample U and V, convert and pack into the output image in one pass
+                CompressedImage yuvCompressed = CompressedImageIO.read(yuvFile, null);
+                BufferedImage reconstructedYUV = CompressedImageIO.decode(yuvCompressed);
                 ImageProcessor.saveImage(reconstructedYUV, "output/reconstructed_yuv_" + i + ".png");
 
                 // YUV Compression Ratio
-                long yBlockCount = (long) Math.ceil((double) (width * height) / 4.0);
-                long uvBlockCount = (long) Math.ceil((double) (width / 2 * height / 2) / 4.0);
-                long yuvCompressedSize = yBlockCount * 8 + 2 * uvBlockCount * 8; // Standard 4:2:0
+                long yBlockCount = shape.blockCount(width, height);
+                long uvBlockCount = shape.blockCount(width / 2, height / 2);
+                long yuvCompressedSize = yBlockCount * bits + 2 * uvBlockCount * bits; // Standard 4:2:0
                 double yuvCompressionRatio = (double) originalSize / yuvCompressedSize;
                 System.out.printf("Image %d YUV Compression Ratio: %.2f\n", i, yuvCompressionRatio);
                 System.out.println("Image " + i + ": width=" + width + ", height=" + height + ", Y blocks=" + yBlockCount +
                                   ", U/V blocks=" + uvBlockCount + ", YUV compressedSize=" + yuvCompressedSize);
 
                 // Experimental YUV Compression Ratio
-                long yuvCompressedSizeExp = yBlockCount * 8 + uvBlockCount * 8; // Reduced U/V contribution
+                long yuvCompressedSizeExp = yBlockCount * bits + uvBlockCount * bits; // Reduced U/V contribution
                 double yuvCompressionRatioExp = (double) originalSize / yuvCompressedSizeExp;
                 System.out.printf("Image %d YUV Experimental Compression Ratio: %.2f\n", i, yuvCompressionRatioExp);
+                long yuvFileSize = Files.size(yuvFile);
+                System.out.printf("Image %d YUV File Size: %d bytes, On-Disk Compression Ratio: %.2f\n", i, yuvFileSize,
+                        (double) originalSize / (yuvFileSize * 8));
+                if (coding != EntropyCoder.RAW) {
+                    reportEntropyCoding(i, "YUV", yuvCompressed, coding);
+                }
 
-                // YUV MSE
-                mse = calculateMSE(original, reconstructedYUV);
-                System.out.printf("Image %d YUV MSE: %.2f\n", i, mse);
+                // YUV MSE, PSNR and SSIM
+                quality = QualityMetrics.compare(original, reconstructedYUV, pool);
+                System.out.printf("Image %d YUV MSE: %.2f\n", i, quality.mse());
+                printQuality(i, "YUV", quality);
+                printPlaneMSE(i, yuvCompressed, YUVConverter.rgbToYUV420(original), pool);
             } catch (Exception e) {
                 System.err.println("Error processing YUV for Image " + i + ": " + e.getMessage());
             }
         }
+
+        //With -Dvq.metrics, stage timings, counters and k-means iterations go to -Dvq.metricsReport (.json or .csv)
+        if (Metrics.ENABLED) {
+            Path report = Paths.get(System.getProperty("vq.metricsReport", "output/metrics.json"));
+            Metrics.writeReport(report);
+            System.out.println("Metrics written to " + report);
+        }
     }
 
-    private static double calculateMSE(BufferedImage original, BufferedImage reconstructed) {
-        int width = original.getWidth();
-        int height = original.getHeight();
-        double mse = 0;
-        //Loop over each pixel
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                //Extract R, G, B channels
-                int origRGB = original.getRGB(x, y);
-                int reconRGB = reconstructed.getRGB(x, y);
-                int r1 = (origRGB >> 16) & 0xFF;
-                int g1 = (origRGB >> 8) & 0xFF;
-                int b1 = origRGB & 0xFF;
-                int r2 = (reconRGB >> 16) & 0xFF;
-                int g2 = (reconRGB >> 8) & 0xFF;
-                int b2 = reconRGB & 0xFF;
-                mse += Math.pow(r1 - r2, 2) + Math.pow(g1 - g2, 2) + Math.pow(b1 - b2, 2);
+    // Train the three codebooks of a colour space and report how well they fit
+    private static int[][][] train(String trainer, List<File> files, int colorSpace, BlockShape shape,
+                                   int codebookSize, int sampleBlocks, int batchBlocks, KMeansOptions options) {
+        try {
+            CodebookTrainer.Result result = CodebookTrainer.train(trainer, files, colorSpace, shape, codebookSize,
+                    sampleBlocks, batchBlocks, options);
+            String planes = colorSpace == CompressedImage.YUV420 ? "YUV" : "RGB";
+            System.out.printf("Trained %s codebooks (%s) over %d blocks in %.1f s\n", planes, trainer,
+                    result.blocksSeen, result.nanos / 1e9);
+            for (int p = 0; p < 3; p++) {
+                System.out.printf("Codebook %c training MSE: %.2f\n", planes.charAt(p), result.mse[p]);
             }
+            return result.codebooks;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Train structured quantizers for the three planes of a colour space and report how well they fit
+    private static Quantizer[] trainQuantizers(String structure, List<File> files, int colorSpace, BlockShape shape,
+                                               int codebookSize, int branching, int sampleBlocks,
+                                               KMeansOptions options) {
+        try {
+            CodebookTrainer.Result result = CodebookTrainer.trainQuantizers(structure, files, colorSpace, shape,
+                    codebookSize, branching, sampleBlocks, options);
+            String planes = colorSpace == CompressedImage.YUV420 ? "YUV" : "RGB";
+            System.out.printf("Trained %s quantizers (%s) over %d blocks in %.1f s\n", planes, structure,
+                    result.blocksSeen, result.nanos / 1e9);
+            for (int p = 0; p < 3; p++) {
+                System.out.printf("Quantizer %c %s training MSE: %.2f\n", planes.charAt(p), result.quantizers[p],
+                        result.mse[p]);
+            }
+            return result.quantizers;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Entropy coding ratio and speed per plane, speeds in MB of raw indices per second
+    private static void reportEntropyCoding(int image, String planes, CompressedImage compressed, int coding)
+            throws IOException {
+        BlockShape shape = compressed.blockShape();
+        for (int p = 0; p < compressed.planes.length; p++) {
+            CompressedImage.Plane plane = compressed.planes[p];
+            int blocksX = shape.blocksX(plane.width);
+            long start = System.nanoTime();
+            EntropyCoder.Coded coded = EntropyCoder.encode(plane.indices, plane.codebook.length, blocksX, coding);
+            long encodeNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            EntropyCoder.decode(coded, plane.indices.size(), plane.indices.bits(), blocksX, coding);
+            long decodeNanos = System.nanoTime() - start;
+            int rawBytes = plane.indices.byteLength();
+            System.out.printf("Image %d %c indices: %d -> %d bytes, Entropy Coding Ratio: %.2f, encode %.0f MB/s, "
+                            + "decode %.0f MB/s\n", image, planes.charAt(p), rawBytes, coded.byteLength(),
+                    (double) rawBytes / coded.byteLength(), rawBytes * 1e3 / encodeNanos,
+                    rawBytes * 1e3 / decodeNanos);
+        }
+    }
+
+    // PSNR and SSIM per channel of the reconstructed colour image
+    private static void printQuality(int image, String label, QualityMetrics.Quality quality) {
+        System.out.printf("Image %d %s PSNR: %.2f dB (R %.2f, G %.2f, B %.2f), SSIM: %.4f (R %.4f, G %.4f, B %.4f)\n",
+                image, label, quality.psnr(), quality.psnr[0], quality.psnr[1], quality.psnr[2], quality.ssim(),
+                quality.ssim[0], quality.ssim[1], quality.ssim[2]);
+    }
+
+    // MSE of each coded plane, straight from its indices and codebook against the original plane
+    private static void printPlaneMSE(int image, CompressedImage compressed, byte[][] originalPlanes,
+                                      ForkJoinPool pool) {
+        String names = compressed.colorSpace == CompressedImage.YUV420 ? "YUV" : "RGB";
+        StringBuilder sb = new StringBuilder(String.format("Image %d %s plane MSE:", image, names));
+        for (int p = 0; p < compressed.planes.length; p++) {
+            CompressedImage.Plane plane = compressed.planes[p];
+            double mse = QualityMetrics.planeMSE(originalPlanes[p], plane.width, plane.height,
+                    compressed.blockShape(), plane.indices, plane.codebook, pool);
+            sb.append(String.format(" %c %.2f", names.charAt(p), mse));
         }
-        return mse / (width * height * 3);
+        System.out.println(sb);
     }
 }
\ No newline at end of file
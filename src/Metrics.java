@@ -0,0 +1,357 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Metrics {
+    // Set once with -Dvq.metrics=true. Every recording method checks this static final first, so with metrics off
+    // the JIT folds the calls away and instrumented code runs as if it were not instrumented.
+    public static final boolean ENABLED = Boolean.getBoolean("vq.metrics");
+
+    // Cap on the k-means iterations kept for the report
+    private static final int MAX_ITERATIONS = 100_000;
+
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final List<Iteration> ITERATIONS = new ArrayList<>();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBeanImpl(),
+                        new ObjectName("vq:type=Metrics"));
+            } catch (Exception e) {
+                System.err.println("Metrics MXBean not registered: " + e);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Count, total, maximum and a power-of-two histogram of durations
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(64);// bucket b holds durations < 2^b ns
+
+        void record(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            buckets.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(Math.max(0, elapsed))));
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double totalMillis() {
+            return nanos.sum() / 1e6;
+        }
+
+        public double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : nanos.sum() / 1e6 / n;
+        }
+
+        public double maxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        // Upper bound of the histogram bucket holding the given quantile, within a factor of 2
+        public double percentileMillis(double quantile) {
+            long n = count.sum();
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(Math.pow(2, b), maxNanos.get()) / 1e6;
+                }
+            }
+            return maxMillis();
+        }
+    }
+
+    // One k-means assignment pass
+    public static class Iteration {
+        public final int iteration;
+        public final int codebookSize;
+        public final double mse;
+        public final long nanos;
+
+        Iteration(int iteration, int codebookSize, double mse, long nanos) {
+            this.iteration = iteration;
+            this.codebookSize = codebookSize;
+            this.mse = mse;
+            this.nanos = nanos;
+        }
+    }
+
+    // Start of a timed section, 0 when metrics are off
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // End of a timed section started with start()
+    public static void stop(String stage, long start) {
+        if (ENABLED) {
+            long elapsed = System.nanoTime() - start;
+            TIMERS.computeIfAbsent(stage, name -> new Timer()).record(elapsed);
+            StageEvent event = new StageEvent();
+            if (event.shouldCommit()) {
+                event.stage = stage;
+                event.elapsed = elapsed;
+                event.commit();
+            }
+        }
+    }
+
+    // End of a timed section of one plane, recorded under stage.P with P the plane's letter (R, G, B or Y, U, V)
+    public static void stop(String stage, int colorSpace, int plane, long start) {
+        if (ENABLED) {
+            stop(stage + "." + planeName(colorSpace, plane), start);
+        }
+    }
+
+    public static void count(String counter, long delta) {
+        if (ENABLED) {
+            COUNTERS.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+        }
+    }
+
+    public static void count(String counter, int colorSpace, int plane, long delta) {
+        if (ENABLED) {
+            count(counter + "." + planeName(colorSpace, plane), delta);
+        }
+    }
+
+    // Distortion and time of one k-means pass, as reported to KMeansOptions listeners
+    public static void kMeansIteration(int iteration, int codebookSize, double mse, long nanos) {
+        if (ENABLED) {
+            TIMERS.computeIfAbsent("kmeans.iteration", name -> new Timer()).record(nanos);
+            synchronized (ITERATIONS) {
+                if (ITERATIONS.size() < MAX_ITERATIONS) {
+                    ITERATIONS.add(new Iteration(iteration, codebookSize, mse, nanos));
+                }
+            }
+            KMeansIterationEvent event = new KMeansIterationEvent();
+            if (event.shouldCommit()) {
+                event.iteration = iteration;
+                event.codebookSize = codebookSize;
+                event.mse = mse;
+                event.elapsed = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    private static char planeName(int colorSpace, int plane) {
+        return (colorSpace == CompressedImage.YUV420 ? "YUV" : "RGB").charAt(plane);
+    }
+
+    public static Map<String, Timer> timers() {
+        return new TreeMap<>(TIMERS);
+    }
+
+    public static Map<String, Long> counters() {
+        Map<String, Long> counters = new TreeMap<>();
+        COUNTERS.forEach((name, adder) -> counters.put(name, adder.sum()));
+        return counters;
+    }
+
+    public static List<Iteration> iterations() {
+        synchronized (ITERATIONS) {
+            return new ArrayList<>(ITERATIONS);
+        }
+    }
+
+    public static void reset() {
+        TIMERS.clear();
+        COUNTERS.clear();
+        synchronized (ITERATIONS) {
+            ITERATIONS.clear();
+        }
+    }
+
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\n  \"timers\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Timer> entry : timers().entrySet()) {
+            Timer t = entry.getValue();
+            sb.append(separator).append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"totalMs\": %.3f, \"meanMs\": %.3f, \"maxMs\": %.3f, "
+                            + "\"p50Ms\": %.3f, \"p99Ms\": %.3f}", entry.getKey(), t.count(), t.totalMillis(),
+                    t.meanMillis(), t.maxMillis(), t.percentileMillis(0.5), t.percentileMillis(0.99)));
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> entry : counters().entrySet()) {
+            sb.append(separator).append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"kmeans\": [");
+        separator = "\n";
+        for (Iteration it : iterations()) {
+            sb.append(separator).append(String.format(Locale.ROOT,
+                    "    {\"iteration\": %d, \"codebookSize\": %d, \"mse\": %.4f, \"ms\": %.3f}", it.iteration,
+                    it.codebookSize, it.mse, it.nanos / 1e6));
+            separator = ",\n";
+        }
+        return sb.append("\n  ]\n}\n").toString();
+    }
+
+    // One row per timer, counter and k-means iteration; columns a row kind does not have are left empty
+    public static String toCsv() {
+        StringBuilder sb = new StringBuilder("kind,name,count,total_ms,mean_ms,max_ms,p50_ms,p99_ms,value\n");
+        for (Map.Entry<String, Timer> entry : timers().entrySet()) {
+            Timer t = entry.getValue();
+            sb.append(String.format(Locale.ROOT, "timer,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%n", entry.getKey(),
+                    t.count(), t.totalMillis(), t.meanMillis(), t.maxMillis(), t.percentileMillis(0.5),
+                    t.percentileMillis(0.99)));
+        }
+        for (Map.Entry<String, Long> entry : counters().entrySet()) {
+            sb.append("counter,").append(entry.getKey()).append(",,,,,,,").append(entry.getValue()).append('\n');
+        }
+        //A k-means row is named by its iteration and codebook size, its value is the MSE
+        for (Iteration it : iterations()) {
+            sb.append(String.format(Locale.ROOT, "kmeans,%d/%d,1,%.3f,%.3f,%.3f,,,%.4f%n", it.iteration,
+                    it.codebookSize, it.nanos / 1e6, it.nanos / 1e6, it.nanos / 1e6, it.mse));
+        }
+        return sb.toString();
+    }
+
+    // Write the report as CSV if the file name ends in .csv, JSON otherwise
+    public static void writeReport(Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        String report = path.toString().toLowerCase(Locale.ROOT).endsWith(".csv") ? toCsv() : toJson();
+        Files.write(path, report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // JMX view of the metrics, registered as vq:type=Metrics when metrics are on
+    public interface MetricsMXBean {
+        Map<String, Long> getCounters();
+
+        Map<String, Long> getTimerCounts();
+
+        Map<String, Double> getTimerTotalMillis();
+
+        Map<String, Double> getTimerMeanMillis();
+
+        Map<String, Double> getTimerMaxMillis();
+
+        int getKMeansIterations();
+
+        String getJson();
+
+        void reset();
+    }
+
+    private static class MXBeanImpl implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            return counters();
+        }
+
+        @Override
+        public Map<String, Long> getTimerCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            TIMERS.forEach((name, timer) -> counts.put(name, timer.count()));
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getTimerTotalMillis() {
+            Map<String, Double> totals = new TreeMap<>();
+            TIMERS.forEach((name, timer) -> totals.put(name, timer.totalMillis()));
+            return totals;
+        }
+
+        @Override
+        public Map<String, Double> getTimerMeanMillis() {
+            Map<String, Double> means = new TreeMap<>();
+            TIMERS.forEach((name, timer) -> means.put(name, timer.meanMillis()));
+            return means;
+        }
+
+        @Override
+        public Map<String, Double> getTimerMaxMillis() {
+            Map<String, Double> maxima = new TreeMap<>();
+            TIMERS.forEach((name, timer) -> maxima.put(name, timer.maxMillis()));
+            return maxima;
+        }
+
+        @Override
+        public int getKMeansIterations() {
+            synchronized (ITERATIONS) {
+                return ITERATIONS.size();
+            }
+        }
+
+        @Override
+        public String getJson() {
+            return toJson();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+
+    // JFR events, recorded when a flight recording with them enabled is running (e.g. -XX:StartFlightRecording)
+    @Name("vq.Stage")
+    @Label("Pipeline Stage")
+    @Category("Vector Quantization")
+    @Description("One timed section of the compression pipeline")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("vq.KMeansIteration")
+    @Label("k-means Iteration")
+    @Category("Vector Quantization")
+    @Description("One k-means assignment pass")
+    static class KMeansIterationEvent extends Event {
+        @Label("Iteration")
+        int iteration;
+
+        @Label("Codebook Size")
+        int codebookSize;
+
+        @Label("MSE")
+        double mse;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+}
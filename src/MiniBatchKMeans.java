@@ -0,0 +1,126 @@
+import java.util.Random;
+
+public class MiniBatchKMeans {
+    private final int codebookSize;
+    private final int length;// values per block
+    private final int batchBlocks;
+    private final Random rand;
+    private final double[] centroids;// flat, length values per codeword
+    private final long[] counts;// blocks assigned to each centroid so far, sets its learning rate
+    private final byte[] shuffle;// blocks held back so that batches mix blocks from far apart in the stream
+    private final byte[] batch;// blocks waiting for the next mini-batch step
+    private final int[] assignment;
+    private int shuffleCount;
+    private int batchCount;
+    private boolean initialized;
+    private long seen;
+
+    // Mini-batch k-means over a stream of packed blocks, updating the centroids every batchBlocks blocks.
+    // Blocks pass through a shuffle buffer of shuffleBlocks blocks first, since image streams are far from random.
+    // Blocks are length values each.
+    public MiniBatchKMeans(int codebookSize, int length, int batchBlocks, int shuffleBlocks, long seed) {
+        this.codebookSize = codebookSize;
+        this.length = length;
+        this.batchBlocks = batchBlocks;
+        this.rand = new Random(seed);
+        this.centroids = new double[codebookSize * length];
+        this.counts = new long[codebookSize];
+        this.shuffle = new byte[Math.max(1, shuffleBlocks) * length];
+        this.batch = new byte[batchBlocks * length];
+        this.assignment = new int[batchBlocks];
+    }
+
+    // Feed packed blocks, running one update step for every full batch
+    public void offer(byte[] blocks) {
+        int capacity = shuffle.length / length;
+        for (int offset = 0; offset < blocks.length; offset += length) {
+            if (shuffleCount < capacity) {
+                System.arraycopy(blocks, offset, shuffle, shuffleCount++ * length,
+                        length);
+                continue;
+            }
+            //Swap the block into a random slot, the block it evicts goes into the batch
+            int slot = rand.nextInt(capacity) * length;
+            System.arraycopy(shuffle, slot, batch, batchCount++ * length, length);
+            System.arraycopy(blocks, offset, shuffle, slot, length);
+            if (batchCount == batchBlocks) {
+                step();
+            }
+        }
+    }
+
+    // Blocks seen so far
+    public long seen() {
+        return seen + batchCount + shuffleCount;
+    }
+
+    // Current codebook, after draining the shuffle buffer in random order and folding in any partial batch
+    public int[][] codebook() {
+        while (shuffleCount > 0) {
+            int slot = rand.nextInt(shuffleCount) * length;
+            int last = --shuffleCount * length;
+            System.arraycopy(shuffle, slot, batch, batchCount++ * length, length);
+            System.arraycopy(shuffle, last, shuffle, slot, length);
+            if (batchCount == batchBlocks) {
+                step();
+            }
+        }
+        if (batchCount > 0) {
+            step();
+        }
+        int[][] codebook = new int[codebookSize][length];
+        for (int i = 0; i < codebookSize; i++) {
+            for (int j = 0; j < length; j++) {
+                codebook[i][j] = (int) Math.round(centroids[i * length + j]);
+            }
+        }
+        return codebook;
+    }
+
+    private void step() {
+        // Seed centroids with random blocks of the first batch
+        if (!initialized) {
+            for (int i = 0; i < codebookSize; i++) {
+                int offset = rand.nextInt(batchCount) * length;
+                for (int j = 0; j < length; j++) {
+                    centroids[i * length + j] = batch[offset + j] & 0xFF;
+                }
+            }
+            initialized = true;
+        }
+
+        // Assign the whole batch against the centroids as they were at the start of the step
+        int[] snapshot = new int[centroids.length];
+        for (int j = 0; j < centroids.length; j++) {
+            snapshot[j] = (int) Math.round(centroids[j]);
+        }
+        CodebookSearch search = new CodebookSearch(snapshot, codebookSize);
+        for (int b = 0; b < batchCount; b++) {
+            assignment[b] = search.nearest(batch, b * length);
+        }
+
+        // Move each centroid towards its blocks with a per-centroid learning rate of 1 / count
+        for (int b = 0; b < batchCount; b++) {
+            int c = assignment[b];
+            counts[c]++;
+            double eta = 1.0 / counts[c];
+            int base = c * length;
+            for (int j = 0; j < length; j++) {
+                centroids[base + j] += eta * ((batch[b * length + j] & 0xFF) - centroids[base + j]);
+            }
+        }
+
+        // Centroids that have never won a block jump to a random block of this batch, so a stream that starts
+        // in one corner of the colour space does not leave them dead
+        for (int i = 0; i < codebookSize; i++) {
+            if (counts[i] == 0) {
+                int offset = rand.nextInt(batchCount) * length;
+                for (int j = 0; j < length; j++) {
+                    centroids[i * length + j] = batch[offset + j] & 0xFF;
+                }
+            }
+        }
+        seen += batchCount;
+        batchCount = 0;
+    }
+}
@@ -0,0 +1,326 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class QualityMetrics {
+    // SSIM is averaged over non-overlapping WINDOW x WINDOW windows, the usual fast variant of the Gaussian window
+    static final int WINDOW = 8;
+    // Rows handed to one parallel task, a whole number of windows
+    private static final int BAND_ROWS = 8 * WINDOW;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+    private static final int[] RGB_SHIFTS = {16, 8, 0};
+    private static final int[] PLANE_SHIFTS = {0};
+
+    // MSE, PSNR and SSIM of each channel (R, G, B for images, one for planes)
+    public static class Quality {
+        public final double[] mse;
+        public final double[] psnr;
+        public final double[] ssim;
+
+        Quality(double[] mse, double[] ssim) {
+            this.mse = mse;
+            this.ssim = ssim;
+            this.psnr = new double[mse.length];
+            for (int c = 0; c < mse.length; c++) {
+                psnr[c] = QualityMetrics.psnr(mse[c]);
+            }
+        }
+
+        // Over all channels; every channel has the same number of values, so this is the plain mean
+        public double mse() {
+            double sum = 0;
+            for (double value : mse) {
+                sum += value;
+            }
+            return sum / mse.length;
+        }
+
+        public double psnr() {
+            return QualityMetrics.psnr(mse());
+        }
+
+        public double ssim() {
+            double sum = 0;
+            for (double value : ssim) {
+                sum += value;
+            }
+            return sum / ssim.length;
+        }
+    }
+
+    // Peak signal-to-noise ratio in dB for 8-bit values, infinite for identical data
+    public static double psnr(double mse) {
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    // Compare two colour images channel by channel in one pass over their rasters, in parallel row bands on the pool
+    // (null runs serially). MSE matches comparing getRGB values, as the old per-pixel loop in Main did.
+    public static Quality compare(BufferedImage original, BufferedImage reconstructed, ForkJoinPool pool) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        if (reconstructed.getWidth() != width || reconstructed.getHeight() != height) {
+            throw new IllegalArgumentException("Image sizes differ: " + width + "x" + height + " and "
+                    + reconstructed.getWidth() + "x" + reconstructed.getHeight());
+        }
+        return run(new Rows(original), new Rows(reconstructed), width, height, RGB_SHIFTS, pool);
+    }
+
+    // Compare two planes of width * height values
+    public static Quality compare(byte[] original, byte[] reconstructed, int width, int height, ForkJoinPool pool) {
+        return run(new Rows(original, width), new Rows(reconstructed, width), width, height, PLANE_SHIFTS, pool);
+    }
+
+    private static Quality run(Rows a, Rows b, int width, int height, int[] shifts, ForkJoinPool pool) {
+        long start = Metrics.start();
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        Sums[] sums = new Sums[bands];
+        BandTask task = new BandTask(a, b, width, height, shifts, sums, 0, bands);
+        if (pool == null) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+
+        //Merge in band order so the result does not depend on scheduling
+        long[] squaredError = new long[shifts.length];
+        double[] ssimSum = new double[shifts.length];
+        long windows = 0;
+        for (Sums band : sums) {
+            for (int c = 0; c < shifts.length; c++) {
+                squaredError[c] += band.squaredError[c];
+                ssimSum[c] += band.ssim[c];
+            }
+            windows += band.windows;
+        }
+        double[] mse = new double[shifts.length];
+        double[] ssim = new double[shifts.length];
+        for (int c = 0; c < shifts.length; c++) {
+            mse[c] = width * height == 0 ? 0 : (double) squaredError[c] / ((long) width * height);
+            ssim[c] = windows == 0 ? 1 : ssimSum[c] / windows;
+        }
+        Metrics.stop("quality", start);
+        return new Quality(mse, ssim);
+    }
+
+    // Totals of one band
+    private static class Sums {
+        final long[] squaredError;
+        final double[] ssim;
+        long windows;
+
+        Sums(int channels) {
+            squaredError = new long[channels];
+            ssim = new double[channels];
+        }
+    }
+
+    // Reads rows of an image as packed 0xRRGGBB ints, or rows of a plane as values 0-255
+    private static class Rows {
+        private final ImageProcessor.RowReader image;
+        private final byte[] plane;
+        private final int width;
+
+        Rows(BufferedImage image) {
+            this.image = new ImageProcessor.RowReader(image);
+            this.plane = null;
+            this.width = image.getWidth();
+        }
+
+        Rows(byte[] plane, int width) {
+            this.image = null;
+            this.plane = plane;
+            this.width = width;
+        }
+
+        // Rows y to y + count - 1 into out, width values per row
+        void read(int y, int count, int[] out) {
+            if (plane == null) {
+                image.read(y, count, out);
+                return;
+            }
+            for (int i = 0, p = y * width; i < count * width; i++, p++) {
+                out[i] = plane[p] & 0xFF;
+            }
+        }
+    }
+
+    // Squared error and SSIM windows of a range of bands, each band into its own Sums
+    private static class BandTask extends RecursiveAction {
+        private final Rows a;
+        private final Rows b;
+        private final int width;
+        private final int height;
+        private final int[] shifts;
+        private final Sums[] sums;
+        private final int from;
+        private final int to;
+
+        BandTask(Rows a, Rows b, int width, int height, int[] shifts, Sums[] sums, int from, int to) {
+            this.a = a;
+            this.b = b;
+            this.width = width;
+            this.height = height;
+            this.shifts = shifts;
+            this.sums = sums;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && inForkJoinPool()) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(a, b, width, height, shifts, sums, from, mid),
+                        new BandTask(a, b, width, height, shifts, sums, mid, to));
+                return;
+            }
+            int channels = shifts.length;
+            int windowsX = width / WINDOW;
+            int[] rowsA = new int[WINDOW * width];
+            int[] rowsB = new int[WINDOW * width];
+            //Per channel and window column: sums of x, y, x^2, y^2 and xy over the current row of windows
+            long[] window = new long[channels * windowsX * 5];
+            for (int band = from; band < to; band++) {
+                Sums s = new Sums(channels);
+                int bandEnd = Math.min(height, (band + 1) * BAND_ROWS);
+                for (int y = band * BAND_ROWS; y < bandEnd; y += WINDOW) {
+                    int rows = Math.min(WINDOW, bandEnd - y);
+                    a.read(y, rows, rowsA);
+                    b.read(y, rows, rowsB);
+                    Arrays.fill(window, 0);
+                    //One fused pass: squared error of every value and window sums of every channel
+                    for (int r = 0; r < rows; r++) {
+                        for (int x = 0; x < width; x++) {
+                            int pa = rowsA[r * width + x];
+                            int pb = rowsB[r * width + x];
+                            int wx = x / WINDOW;
+                            boolean inWindow = wx < windowsX;
+                            for (int c = 0; c < channels; c++) {
+                                int va = (pa >> shifts[c]) & 0xFF;
+                                int vb = (pb >> shifts[c]) & 0xFF;
+                                int diff = va - vb;
+                                s.squaredError[c] += diff * diff;
+                                if (inWindow) {
+                                    int w = (c * windowsX + wx) * 5;
+                                    window[w] += va;
+                                    window[w + 1] += vb;
+                                    window[w + 2] += va * va;
+                                    window[w + 3] += vb * vb;
+                                    window[w + 4] += va * vb;
+                                }
+                            }
+                        }
+                    }
+                    if (rows == WINDOW) {
+                        for (int c = 0; c < channels; c++) {
+                            for (int wx = 0; wx < windowsX; wx++) {
+                                int w = (c * windowsX + wx) * 5;
+                                s.ssim[c] += ssim(window[w], window[w + 1], window[w + 2], window[w + 3],
+                                        window[w + 4]);
+                            }
+                        }
+                        s.windows += windowsX;
+                    }
+                }
+                sums[band] = s;
+            }
+        }
+    }
+
+    // SSIM of one window from its sums
+    private static double ssim(long sx, long sy, long sxx, long syy, long sxy) {
+        double n = WINDOW * WINDOW;
+        double mx = sx / n;
+        double my = sy / n;
+        double vx = sxx / n - mx * mx;
+        double vy = syy / n - my * my;
+        double cov = sxy / n - mx * my;
+        return (2 * mx * my + C1) * (2 * cov + C2) / ((mx * mx + my * my + C1) * (vx + vy + C2));
+    }
+
+    // MSE of a plane against the reconstruction its indices and codebook describe, without building it. Values
+    // outside whole blocks reconstruct to 0, as in ImageProcessor.reconstructPlane. Block rows run in parallel.
+    public static double planeMSE(byte[] plane, int width, int height, BlockShape shape, IndexStream indices,
+                                  int[][] codebook, ForkJoinPool pool) {
+        if (width * height == 0) {
+            return 0;
+        }
+        long start = Metrics.start();
+        int blocksY = shape.blocksY(height);
+        long[] rowErrors = new long[blocksY];
+        IndexTask task = new IndexTask(plane, width, shape, indices, codebook, rowErrors, 0, blocksY);
+        if (pool == null) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+        long sum = 0;
+        for (long error : rowErrors) {
+            sum += error;
+        }
+        //Right and bottom margins that no block covers
+        int coveredWidth = shape.blocksX(width) * shape.width;
+        int coveredHeight = blocksY * shape.height;
+        for (int y = 0; y < height; y++) {
+            for (int x = y < coveredHeight ? coveredWidth : 0; x < width; x++) {
+                int value = plane[y * width + x] & 0xFF;
+                sum += value * value;
+            }
+        }
+        Metrics.stop("quality.indices", start);
+        return (double) sum / ((long) width * height);
+    }
+
+    // Squared error of a range of block rows, each row into its own slot
+    private static class IndexTask extends RecursiveAction {
+        private static final int MIN_ROWS = 16;
+        private final byte[] plane;
+        private final int width;
+        private final BlockShape shape;
+        private final IndexStream indices;
+        private final int[][] codebook;
+        private final long[] rowErrors;
+        private final int from;
+        private final int to;
+
+        IndexTask(byte[] plane, int width, BlockShape shape, IndexStream indices, int[][] codebook,
+                  long[] rowErrors, int from, int to) {
+            this.plane = plane;
+            this.width = width;
+            this.shape = shape;
+            this.indices = indices;
+            this.codebook = codebook;
+            this.rowErrors = rowErrors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MIN_ROWS && inForkJoinPool()) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new IndexTask(plane, width, shape, indices, codebook, rowErrors, from, mid),
+                        new IndexTask(plane, width, shape, indices, codebook, rowErrors, mid, to));
+                return;
+            }
+            int blocksX = shape.blocksX(width);
+            for (int by = from; by < to; by++) {
+                long sum = 0;
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int[] codeVector = codebook[indices.get(by * blocksX + bx)];
+                    int p = by * shape.height * width + bx * shape.width;
+                    int j = 0;
+                    for (int dy = 0; dy < shape.height; dy++) {
+                        for (int dx = 0; dx < shape.width; dx++) {
+                            int diff = (plane[p + dy * width + dx] & 0xFF) - codeVector[j++];
+                            sum += diff * diff;
+                        }
+                    }
+                }
+                rowErrors[by] = sum;
+            }
+        }
+    }
+}
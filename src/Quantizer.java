@@ -0,0 +1,39 @@
+public interface Quantizer {
+    // Flat codebook the indices refer to. Reconstruction and the container only ever see this, so every quantizer
+    // decodes the same way.
+    int[][] codebook();
+
+    // Index of the codeword chosen for the packed block starting at offset. Called from several threads at once.
+    int encode(byte[] blocks, int offset);
+
+    // The same, with a caller-owned scratch array of at least one block that is reused from block to block, so
+    // quantizers that need working space do not allocate on the encode path
+    default int encode(byte[] blocks, int offset, byte[] scratch) {
+        return encode(blocks, offset);
+    }
+
+    // Exhaustive (but pruned) nearest-codeword search over a flat codebook
+    static Quantizer flat(int[][] codebook) {
+        CodebookSearch search = new CodebookSearch(codebook);
+        return new Quantizer() {
+            @Override
+            public int[][] codebook() {
+                return codebook;
+            }
+
+            @Override
+            public int encode(byte[] blocks, int offset) {
+                return search.nearest(blocks, offset);
+            }
+        };
+    }
+
+    // Flat quantizers for a set of codebooks, one per plane
+    static Quantizer[] flat(int[][][] codebooks) {
+        Quantizer[] quantizers = new Quantizer[codebooks.length];
+        for (int p = 0; p < codebooks.length; p++) {
+            quantizers[p] = flat(codebooks[p]);
+        }
+        return quantizers;
+    }
+}
@@ -0,0 +1,84 @@
+public class ResidualQuantizer implements Quantizer {
+    // Residuals are stored offset by this so that they fit the unsigned block bytes k-means trains on
+    public static final int RESIDUAL_OFFSET = 128;
+    // Largest expanded codebook the container can describe
+    public static final int MAX_CODEBOOK_SIZE = 0xFFFF;
+
+    private final int length;
+    private final int[][] first;
+    private final int[][] second;// residual codewords, offset by RESIDUAL_OFFSET
+    private final CodebookSearch firstSearch;
+    private final CodebookSearch secondSearch;
+    private final int[][] codebook;
+
+    // Two-stage quantizer: the first codebook quantizes the block, the second quantizes what the first left over.
+    // Index i * second.length + j decodes to first[i] + second[j] - RESIDUAL_OFFSET, clamped to a byte, so the
+    // expanded codebook of first.length * second.length codewords reconstructs like any flat codebook.
+    public ResidualQuantizer(int[][] first, int[][] second) {
+        if ((long) first.length * second.length > MAX_CODEBOOK_SIZE) {
+            throw new IllegalArgumentException("Expanded codebook too large: " + first.length + " x " + second.length);
+        }
+        this.length = first[0].length;
+        this.first = first;
+        this.second = second;
+        this.firstSearch = new CodebookSearch(first);
+        this.secondSearch = new CodebookSearch(second);
+        this.codebook = new int[first.length * second.length][length];
+        for (int i = 0; i < first.length; i++) {
+            for (int j = 0; j < second.length; j++) {
+                int[] codeVector = codebook[i * second.length + j];
+                for (int v = 0; v < length; v++) {
+                    codeVector[v] = clamp(first[i][v] + second[j][v] - RESIDUAL_OFFSET);
+                }
+            }
+        }
+    }
+
+    // Train the first stage with k-means on the blocks, then the second on the residuals of the first stage
+    public static ResidualQuantizer train(byte[] blocks, int length, int firstSize, int secondSize,
+                                          KMeansOptions options) {
+        int[][] first = VectorQuantizer.generateCodebook(blocks, length, firstSize, options);
+        int[] indices = VectorQuantizer.compressComponent(blocks, first, options.pool());
+        byte[] residuals = new byte[blocks.length];
+        for (int i = 0; i < indices.length; i++) {
+            residual(blocks, i * length, first[indices[i]], residuals, i * length);
+        }
+        int[][] second = VectorQuantizer.generateCodebook(residuals, length, secondSize, options);
+        return new ResidualQuantizer(first, second);
+    }
+
+    // Block minus codeword, offset and clamped into unsigned bytes (residuals beyond +-128 are rare and saturate)
+    private static void residual(byte[] blocks, int offset, int[] codeVector, byte[] out, int outOffset) {
+        for (int j = 0; j < codeVector.length; j++) {
+            out[outOffset + j] = (byte) clamp((blocks[offset + j] & 0xFF) - codeVector[j] + RESIDUAL_OFFSET);
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    @Override
+    public int[][] codebook() {
+        return codebook;
+    }
+
+    @Override
+    public int encode(byte[] blocks, int offset) {
+        return encode(blocks, offset, new byte[length]);
+    }
+
+    // One search per stage: first.length + second.length candidates at most instead of their product. The residual
+    // goes into the scratch array.
+    @Override
+    public int encode(byte[] blocks, int offset, byte[] scratch) {
+        int i = firstSearch.nearest(blocks, offset);
+        residual(blocks, offset, first[i], scratch, 0);
+        return i * second.length + secondSearch.nearest(scratch, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ResidualQuantizer[" + first.length + " x " + second.length + "]";
+    }
+}
@@ -0,0 +1,265 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class StreamingEncoder {
+    // Image rows decoded at a time unless a caller asks otherwise
+    public static final int DEFAULT_BAND_HEIGHT = 256;
+
+    // Receives one decoded band of rows, starting at image row y
+    public interface BandConsumer {
+        void accept(BufferedImage band, int y) throws IOException;
+    }
+
+    // Hand an image file to the consumer band by band. Tiled images are decoded through ImageReader region reads,
+    // so only one band of pixels is in memory. JPEG and PNG are not tiled and their readers decode every region
+    // from the top of the image, which makes band reads quadratic in the height: those are decoded once and the
+    // bands are views of the one image.
+    public static void forEachBand(File file, int bandHeight, BandConsumer consumer) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (!reader.isImageTiled(0)) {
+                    BufferedImage image = reader.read(0);
+                    for (int y = 0; y < height; y += bandHeight) {
+                        consumer.accept(image.getSubimage(0, y, width, Math.min(bandHeight, height - y)), y);
+                    }
+                    return;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                for (int y = 0; y < height; y += bandHeight) {
+                    param.setSourceRegion(new Rectangle(0, y, width, Math.min(bandHeight, height - y)));
+                    consumer.accept(reader.read(0, param), y);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Decode a whole image file
+    private static BufferedImage read(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Width and height of an image file, read from its header only
+    public static Dimension imageSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader readerFor(ImageInputStream input, File file) throws IOException {
+        if (input == null) {
+            throw new IOException("Cannot open image: " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("No image reader for: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        return reader;
+    }
+
+    // Bands must hold whole blocks in every plane, including the half-size 4:2:0 chroma planes
+    private static int alignBandHeight(int bandHeight, BlockShape shape) {
+        int step = 2 * shape.height;
+        return Math.max(step, (bandHeight + step - 1) / step * step);
+    }
+
+    // Encode an image file straight into a compressed file. Each band is quantized as soon as it is decoded and
+    // its indices are appended to their plane's region of the file, so the blocks and indices in memory are bounded
+    // by the band. The pixels are too for tiled images; others are decoded whole (see forEachBand).
+    public static void encode(File input, Path output, int colorSpace, BlockShape shape, int[][][] codebooks,
+                              boolean sharedCodebooks, int bandHeight, ForkJoinPool pool) throws IOException {
+        encode(input, output, colorSpace, shape, Quantizer.flat(codebooks), sharedCodebooks, bandHeight, pool);
+    }
+
+    // Encode with one quantizer per plane; the planes store the quantizers' codebooks
+    public static void encode(File input, Path output, int colorSpace, BlockShape shape, Quantizer[] quantizers,
+                              boolean sharedCodebooks, int bandHeight, ForkJoinPool pool) throws IOException {
+        encode(input, output, colorSpace, shape, quantizers, sharedCodebooks, bandHeight, EntropyCoder.RAW, pool);
+    }
+
+    // Encode with the indices raw or entropy coded (an EntropyCoder coding)
+    public static void encode(File input, Path output, int colorSpace, BlockShape shape, Quantizer[] quantizers,
+                              boolean sharedCodebooks, int bandHeight, int coding, ForkJoinPool pool)
+            throws IOException {
+        int rows = alignBandHeight(bandHeight, shape);
+        Dimension size = imageSize(input);
+        int width = size.width;
+        int height = size.height;
+        int[] planeWidths = new int[3];
+        int[] planeHeights = new int[3];
+        for (int p = 0; p < 3; p++) {
+            boolean chroma = colorSpace == CompressedImage.YUV420 && p > 0;
+            planeWidths[p] = chroma ? width / 2 : width;
+            planeHeights[p] = chroma ? height / 2 : height;
+        }
+        if (coding != EntropyCoder.RAW) {
+            //Huffman tables need the histogram of the whole plane, so the indices (not the pixels) are kept until
+            //the last band and written in one go
+            IndexStream[] indices = new IndexStream[3];
+            int[] filled = new int[3];
+            for (int p = 0; p < 3; p++) {
+                indices[p] = new IndexStream(shape.blockCount(planeWidths[p], planeHeights[p]),
+                        IndexStream.bitsFor(quantizers[p].codebook().length));
+            }
+            forEachBand(input, rows, (band, y) -> {
+                byte[][] blocks = bandBlocks(band, colorSpace, shape);
+                for (int p = 0; p < 3; p++) {
+                    long start = Metrics.start();
+                    IndexStream bandIndices = VectorQuantizer.compress(blocks[p], quantizers[p], pool);
+                    Metrics.stop("quantize", colorSpace, p, start);
+                    for (int i = 0; i < bandIndices.size(); i++) {
+                        indices[p].set(filled[p]++, bandIndices.get(i));
+                    }
+                }
+            });
+            CompressedImage.Plane[] planes = new CompressedImage.Plane[3];
+            for (int p = 0; p < 3; p++) {
+                planes[p] = new CompressedImage.Plane(planeWidths[p], planeHeights[p], quantizers[p].codebook(),
+                        sharedCodebooks, indices[p]);
+            }
+            CompressedImageIO.write(new CompressedImage(width, height, colorSpace, shape.width, shape.height, planes),
+                    output, coding);
+            return;
+        }
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            //Headers first, then every plane's index stream gets a fixed region of the file
+            ByteBuffer header = ByteBuffer.allocate(CompressedImageIO.HEADER_SIZE);
+            CompressedImageIO.putHeader(header, width, height, colorSpace, shape.width, shape.height, 3);
+            CompressedImageIO.writeFully(channel, header.flip());
+            long position = CompressedImageIO.HEADER_SIZE;
+            CompressedImageIO.IndexWriter[] writers = new CompressedImageIO.IndexWriter[3];
+            for (int p = 0; p < 3; p++) {
+                int indexCount = shape.blockCount(planeWidths[p], planeHeights[p]);
+                int[][] codebook = quantizers[p].codebook();
+                int bits = IndexStream.bitsFor(codebook.length);
+                ByteBuffer planeHeader = CompressedImageIO.planeHeader(planeWidths[p], planeHeights[p], codebook,
+                        sharedCodebooks, indexCount, bits, EntropyCoder.RAW);
+                while (planeHeader.hasRemaining()) {
+                    position += channel.write(planeHeader, position);
+                }
+                writers[p] = new CompressedImageIO.IndexWriter(channel, position);
+                position += ((long) indexCount * bits + 7) / 8;
+            }
+
+            //Bands arrive top to bottom, so each plane's indices are appended in order
+            forEachBand(input, rows, (band, y) -> {
+                byte[][] blocks = bandBlocks(band, colorSpace, shape);
+                for (int p = 0; p < 3; p++) {
+                    long start = Metrics.start();
+                    IndexStream indices = VectorQuantizer.compress(blocks[p], quantizers[p], pool);
+                    Metrics.stop("quantize", colorSpace, p, start);
+                    writers[p].append(indices);
+                }
+            });
+            for (CompressedImageIO.IndexWriter writer : writers) {
+                writer.finish();
+            }
+        }
+    }
+
+    // Packed blocks of the three planes of one band
+    private static byte[][] bandBlocks(BufferedImage band, int colorSpace, BlockShape shape) {
+        if (colorSpace == CompressedImage.YUV420) {
+            int width = band.getWidth();
+            int height = band.getHeight();
+            byte[][] yuv = YUVConverter.rgbToYUV420(band);
+            return new byte[][]{
+                    ImageProcessor.extractPackedBlocks(yuv[0], width, height, shape),
+                    ImageProcessor.extractPackedBlocks(yuv[1], width / 2, height / 2, shape),
+                    ImageProcessor.extractPackedBlocks(yuv[2], width / 2, height / 2, shape)};
+        }
+        return ImageProcessor.extractPackedBlocks(band, "RGB", shape);
+    }
+
+    // Packed training blocks of the given shape of the three planes of several image files. All blocks are kept
+    // anyway, so each file is decoded whole, once, and its blocks are written straight into the result.
+    public static byte[][] extractPackedBlocks(List<File> files, int colorSpace, BlockShape shape)
+            throws IOException {
+        int[] totals = new int[3];
+        for (File file : files) {
+            Dimension size = imageSize(file);
+            for (int p = 0; p < 3; p++) {
+                boolean chroma = colorSpace == CompressedImage.YUV420 && p > 0;
+                totals[p] += chroma ? shape.blockCount(size.width / 2, size.height / 2)
+                        : shape.blockCount(size.width, size.height);
+            }
+        }
+        byte[][] blocks = new byte[3][];
+        for (int p = 0; p < 3; p++) {
+            blocks[p] = new byte[totals[p] * shape.length];
+        }
+        int[] offsets = new int[3];// in blocks
+        for (File file : files) {
+            BufferedImage image = read(file);
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (colorSpace == CompressedImage.YUV420) {
+                byte[][] yuv = YUVConverter.rgbToYUV420(image);
+                for (int p = 0; p < 3; p++) {
+                    int planeWidth = p > 0 ? width / 2 : width;
+                    int planeHeight = p > 0 ? height / 2 : height;
+                    ImageProcessor.extractPackedBlocks(yuv[p], planeWidth, planeHeight, shape, blocks[p], offsets[p]);
+                    offsets[p] += shape.blockCount(planeWidth, planeHeight);
+                }
+            } else {
+                ImageProcessor.extractPackedBlocks(image, "RGB", shape, blocks, offsets[0]);
+                int count = shape.blockCount(width, height);
+                for (int p = 0; p < 3; p++) {
+                    offsets[p] += count;
+                }
+            }
+        }
+        return blocks;
+    }
+
+    // Receives the packed blocks of the three planes of one band
+    public interface BlocksConsumer {
+        void accept(byte[][] blocks) throws IOException;
+    }
+
+    // Stream the packed blocks of the given shape of several image files band by band, without keeping any of them
+    public static void forEachBandBlocks(List<File> files, int colorSpace, BlockShape shape, int bandHeight,
+                                         BlocksConsumer consumer) throws IOException {
+        int rows = alignBandHeight(bandHeight, shape);
+        for (File file : files) {
+            forEachBand(file, rows, (band, y) -> consumer.accept(bandBlocks(band, colorSpace, shape)));
+        }
+    }
+}
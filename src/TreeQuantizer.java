@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class TreeQuantizer implements Quantizer {
+    private final int length;
+    private final int[] centroids;// flat, length values per node
+    private final int[] firstChild;// node number of the first child, children are consecutive
+    private final int[] childCount;// 0 for leaves
+    private final int[] leafIndex;// codebook index of each leaf, -1 for inner nodes
+    private final int[][] codebook;
+
+    private TreeQuantizer(int length, int[] centroids, int[] firstChild, int[] childCount, int[] leafIndex,
+                          int[][] codebook) {
+        this.length = length;
+        this.centroids = centroids;
+        this.firstChild = firstChild;
+        this.childCount = childCount;
+        this.leafIndex = leafIndex;
+        this.codebook = codebook;
+    }
+
+    // A node of the tree while it is being grown, with the blocks that fall into it
+    private static class Node {
+        final int id;
+        final int depth;
+        final int[] centroid;
+        byte[] blocks;
+        final long distortion;// squared error of its blocks against its centroid, the split priority
+        int firstChild = -1;
+        int childCount;
+
+        Node(int id, int depth, int[] centroid, byte[] blocks, long distortion) {
+            this.id = id;
+            this.depth = depth;
+            this.centroid = centroid;
+            this.blocks = blocks;
+            this.distortion = distortion;
+        }
+    }
+
+    // Grow a tree-structured codebook with leafCount leaves by splitting, at every step, the leaf with the largest
+    // distortion into branching children with k-means on its own blocks. Encoding walks from the root, comparing
+    // a block with at most branching children per level instead of with every codeword. Leaves are never split
+    // below ceil(log_branching(leafCount)) levels, the depth of a balanced tree, so encoding stays logarithmic
+    // however skewed the distortion is.
+    public static TreeQuantizer train(byte[] blocks, int length, int leafCount, int branching, KMeansOptions options) {
+        if (branching < 2) {
+            throw new IllegalArgumentException("Branching factor must be at least 2: " + branching);
+        }
+        int maxDepth = 0;
+        for (long capacity = 1; capacity < leafCount; capacity *= branching) {
+            maxDepth++;
+        }
+        List<Node> nodes = new ArrayList<>();
+        Node root = node(nodes, 0, mean(blocks, length), blocks, length);
+        //Largest distortion first, lowest id on ties, so the tree depends only on the data and the seed
+        PriorityQueue<Node> leaves = new PriorityQueue<>((a, b) -> a.distortion != b.distortion
+                ? Long.compare(b.distortion, a.distortion) : Integer.compare(a.id, b.id));
+        leaves.add(root);
+        int leafTotal = 1;
+        while (leafTotal < leafCount && !leaves.isEmpty()) {
+            Node parent = leaves.poll();
+            //Near the target, split into fewer children so the leaf count comes out exact
+            int children = Math.min(branching, leafCount - leafTotal + 1);
+            int blockCount = parent.blocks.length / length;
+            if (parent.distortion == 0 || blockCount < children || parent.depth == maxDepth) {
+                continue;// cannot be improved by splitting or at the depth bound; stays a leaf
+            }
+            int[][] childCentroids = VectorQuantizer.generateCodebook(parent.blocks, length, children, options);
+            byte[][] childBlocks = partition(parent.blocks, length, childCentroids);
+            parent.firstChild = nodes.size();
+            parent.childCount = children;
+            for (int c = 0; c < children; c++) {
+                leaves.add(node(nodes, parent.depth + 1, childCentroids[c], childBlocks[c], length));
+            }
+            parent.blocks = null;
+            leafTotal += children - 1;
+        }
+
+        //Number the leaves in node order and flatten the tree
+        int[] centroids = new int[nodes.size() * length];
+        int[] firstChild = new int[nodes.size()];
+        int[] childCount = new int[nodes.size()];
+        int[] leafIndex = new int[nodes.size()];
+        List<int[]> codebook = new ArrayList<>();
+        for (Node node : nodes) {
+            System.arraycopy(node.centroid, 0, centroids, node.id * length, length);
+            firstChild[node.id] = node.firstChild;
+            childCount[node.id] = node.childCount;
+            leafIndex[node.id] = node.childCount == 0 ? codebook.size() : -1;
+            if (node.childCount == 0) {
+                codebook.add(node.centroid);
+            }
+        }
+        return new TreeQuantizer(length, centroids, firstChild, childCount, leafIndex, codebook.toArray(new int[0][]));
+    }
+
+    private static Node node(List<Node> nodes, int depth, int[] centroid, byte[] blocks, int length) {
+        long distortion = 0;
+        for (int offset = 0; offset < blocks.length; offset += length) {
+            for (int j = 0; j < length; j++) {
+                int diff = (blocks[offset + j] & 0xFF) - centroid[j];
+                distortion += diff * diff;
+            }
+        }
+        Node node = new Node(nodes.size(), depth, centroid, blocks, distortion);
+        nodes.add(node);
+        return node;
+    }
+
+    private static int[] mean(byte[] blocks, int length) {
+        long[] sum = new long[length];
+        for (int offset = 0; offset < blocks.length; offset += length) {
+            for (int j = 0; j < length; j++) {
+                sum[j] += blocks[offset + j] & 0xFF;
+            }
+        }
+        int[] mean = new int[length];
+        int blockCount = Math.max(1, blocks.length / length);
+        for (int j = 0; j < length; j++) {
+            mean[j] = (int) (sum[j] / blockCount);
+        }
+        return mean;
+    }
+
+    // Split packed blocks by nearest centroid, one packed array per centroid
+    private static byte[][] partition(byte[] blocks, int length, int[][] centroids) {
+        CodebookSearch search = new CodebookSearch(centroids);
+        int blockCount = blocks.length / length;
+        int[] assignment = new int[blockCount];
+        int[] counts = new int[centroids.length];
+        for (int b = 0; b < blockCount; b++) {
+            assignment[b] = search.nearest(blocks, b * length);
+            counts[assignment[b]]++;
+        }
+        byte[][] parts = new byte[centroids.length][];
+        for (int c = 0; c < parts.length; c++) {
+            parts[c] = new byte[counts[c] * length];
+        }
+        int[] fill = new int[centroids.length];
+        for (int b = 0; b < blockCount; b++) {
+            int c = assignment[b];
+            System.arraycopy(blocks, b * length, parts[c], fill[c], length);
+            fill[c] += length;
+        }
+        return parts;
+    }
+
+    @Override
+    public int[][] codebook() {
+        return codebook;
+    }
+
+    // Greedy descent: the nearest child at each level, ties to the first child
+    @Override
+    public int encode(byte[] blocks, int offset) {
+        int node = 0;
+        while (childCount[node] > 0) {
+            int first = firstChild[node];
+            int best = Integer.MAX_VALUE;
+            int bestChild = first;
+            for (int child = first; child < first + childCount[node]; child++) {
+                int base = child * length;
+                int dist = 0;
+                for (int j = 0; j < length && dist < best; j++) {
+                    int diff = (blocks[offset + j] & 0xFF) - centroids[base + j];
+                    dist += diff * diff;
+                }
+                if (dist < best) {
+                    best = dist;
+                    bestChild = child;
+                }
+            }
+            node = bestChild;
+        }
+        return leafIndex[node];
+    }
+
+    // Deepest path from the root, the worst-case number of levels an encode visits
+    public int depth() {
+        int[] depths = new int[childCount.length];
+        int deepest = 0;
+        //Children always have higher node numbers than their parent
+        for (int node = 0; node < childCount.length; node++) {
+            for (int child = firstChild[node]; child < firstChild[node] + childCount[node]; child++) {
+                depths[child] = depths[node] + 1;
+                deepest = Math.max(deepest, depths[child]);
+            }
+        }
+        return deepest;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeQuantizer[" + codebook.length + " leaves, depth " + depth() + ", "
+                + Arrays.stream(childCount).filter(c -> c > 0).count() + " inner nodes]";
+    }
+}
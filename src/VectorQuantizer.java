@@ -1,8 +1,14 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class VectorQuantizer {
+    // Number of pixel values in one 2x2 block
+    public static final int BLOCK_LENGTH = 4;
+
     // Generate codebook using k-means clustering
     public static int[][] generateCodebook(List<int[]> blocks, int codebookSize) {
         
@@ -23,8 +29,9 @@ public class VectorQuantizer {
             }
 
             // Assign blocks to nearest centroid
+            CodebookSearch search = new CodebookSearch(codebook);
             for (int[] block : blocks) {
-                int nearest = findNearestCentroid(block, codebook);
+                int nearest = search.nearest(block);
                 clusters.get(nearest).add(block);
             }
 
@@ -47,29 +54,436 @@ public class VectorQuantizer {
         return codebook;
     }
 
-    // Find nearest codebook vector
-    private static int findNearestCentroid(int[] block, int[][] codebook) {
-        int nearest = 0;
-        double minDist = Double.MAX_VALUE;
-        for (int i = 0; i < codebook.length; i++) {
-            double dist = 0;
-            for (int j = 0; j < 4; j++) {
-                dist += Math.pow(block[j] - codebook[i][j], 2);
+    // Compress image component to codebook indices
+    public static int[][] compressComponent(List<int[]> blocks, int[][] codebook) {
+        int[][] indices = new int[blocks.size()][1];
+        CodebookSearch search = new CodebookSearch(codebook);
+        for (int i = 0; i < blocks.size(); i++) {
+            indices[i][0] = search.nearest(blocks.get(i));
+        }
+        return indices;
+    }
+
+    // Generate codebook over packed blocks from random initial centroids, running a fixed 10 iterations with the
+    // assignment step split across the pool (null runs serially)
+    public static int[][] generateCodebook(byte[] blocks, int codebookSize, long seed, ForkJoinPool pool) {
+        return generateCodebook(blocks, codebookSize, new KMeansOptions().seed(seed).pool(pool));
+    }
+
+    // Generate codebook over packed blocks with the initializer, stopping rule, seed and pool of the options.
+    // The result depends only on the options: partial sums are integers, so merge order does not matter.
+    public static int[][] generateCodebook(byte[] blocks, int codebookSize, KMeansOptions options) {
+        return generateCodebook(blocks, BLOCK_LENGTH, codebookSize, options);
+    }
+
+    // Generate codebook over packed blocks of length values each (the block shape's length)
+    public static int[][] generateCodebook(byte[] blocks, int length, int codebookSize, KMeansOptions options) {
+        long started = Metrics.start();
+        int blockCount = blocks.length / length;
+        Random rand = new Random(options.seed);
+        Lloyd lloyd = new Lloyd(blocks, length, codebookSize, options, rand);
+        //Centroids are kept in one flat array, length values per codeword
+        int[] centroids;
+        switch (options.init) {
+            case KMEANS_PLUS_PLUS:
+                centroids = kMeansPlusPlus(blocks, length, codebookSize, rand);
+                lloyd.run(centroids, codebookSize);
+                break;
+            case LBG:
+                //Every split is refined as it is made, the last one at full size
+                centroids = splitCodebook(blocks, length, codebookSize, lloyd);
+                break;
+            default:
+                centroids = new int[codebookSize * length];
+                for (int i = 0; i < codebookSize; i++) {
+                    int offset = rand.nextInt(blockCount) * length;
+                    for (int j = 0; j < length; j++) {
+                        centroids[i * length + j] = blocks[offset + j] & 0xFF;
+                    }
+                }
+                lloyd.run(centroids, codebookSize);
+        }
+
+        int[][] codebook = new int[codebookSize][];
+        for (int i = 0; i < codebookSize; i++) {
+            codebook[i] = Arrays.copyOfRange(centroids, i * length, (i + 1) * length);
+        }
+        Metrics.stop("kmeans", started);
+        return codebook;
+    }
+
+    // k-means++ seeding: each new centroid is a block drawn with probability proportional to its squared distance
+    // from the nearest centroid chosen so far
+    private static int[] kMeansPlusPlus(byte[] blocks, int length, int codebookSize, Random rand) {
+        int blockCount = blocks.length / length;
+        int[] centroids = new int[codebookSize * length];
+        int[] distance = new int[blockCount];
+        Arrays.fill(distance, Integer.MAX_VALUE);
+        int chosen = rand.nextInt(blockCount) * length;
+        for (int i = 0; i < codebookSize; i++) {
+            int base = i * length;
+            for (int j = 0; j < length; j++) {
+                centroids[base + j] = blocks[chosen + j] & 0xFF;
+            }
+            if (i == codebookSize - 1) {
+                break;
             }
-            if (dist < minDist) {
-                minDist = dist;
-                nearest = i;
+
+            //Fold the new centroid into every block's nearest distance
+            long total = 0;
+            for (int b = 0, offset = 0; b < blockCount; b++, offset += length) {
+                int d = 0;
+                for (int j = 0; j < length; j++) {
+                    int diff = (blocks[offset + j] & 0xFF) - centroids[base + j];
+                    d += diff * diff;
+                }
+                if (d < distance[b]) {
+                    distance[b] = d;
+                }
+                total += distance[b];
             }
+
+            //Every block already sits on a centroid: the rest can only be duplicates
+            if (total == 0) {
+                chosen = rand.nextInt(blockCount) * length;
+                continue;
+            }
+            long target = rand.nextLong(total);
+            int b = 0;
+            while ((target -= distance[b]) >= 0) {
+                b++;
+            }
+            chosen = b * length;
         }
-        return nearest;
+        return centroids;
     }
 
-    // Compress image component to codebook indices
-    public static int[][] compressComponent(List<int[]> blocks, int[][] codebook) {
-        int[][] indices = new int[blocks.size()][1];
-        for (int i = 0; i < blocks.size(); i++) {
-            indices[i][0] = findNearestCentroid(blocks.get(i), codebook);
+    // LBG splitting: start from the mean of all blocks and split codewords into pairs one apart, refining after
+    // every round, until the codebook is full. Rounds that cannot split every codeword split the largest clusters.
+    private static int[] splitCodebook(byte[] blocks, int length, int codebookSize, Lloyd lloyd) {
+        int blockCount = blocks.length / length;
+        int[] centroids = new int[codebookSize * length];
+        long[] sum = new long[length];
+        for (int offset = 0; offset < blocks.length; offset += length) {
+            for (int j = 0; j < length; j++) {
+                sum[j] += blocks[offset + j] & 0xFF;
+            }
+        }
+        for (int j = 0; j < length; j++) {
+            centroids[j] = (int) (sum[j] / Math.max(1, blockCount));
+        }
+
+        int size = 1;
+        int[] counts = {blockCount};
+        if (codebookSize == 1) {
+            lloyd.run(centroids, 1);
+        }
+        while (size < codebookSize) {
+            int splits = Math.min(size, codebookSize - size);
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            int[] clusterSizes = counts;
+            Arrays.sort(order, (a, b) -> Integer.compare(clusterSizes[b], clusterSizes[a]));
+            for (int s = 0; s < splits; s++) {
+                int from = order[s] * length;
+                int to = (size + s) * length;
+                for (int j = 0; j < length; j++) {
+                    int value = centroids[from + j];
+                    centroids[from + j] = Math.max(0, value - 1);
+                    centroids[to + j] = Math.min(255, value + 1);
+                }
+            }
+            size += splits;
+            counts = lloyd.run(centroids, size);
+        }
+        return centroids;
+    }
+
+    // Smallest number of blocks handed to one parallel task
+    private static final int MIN_CHUNK_BLOCKS = 4096;
+
+    // Lloyd iterations over packed blocks, reusing one set of per-chunk accumulators for every run
+    private static class Lloyd {
+        private final byte[] blocks;
+        private final int length;
+        private final KMeansOptions options;
+        private final Random rand;
+        private final AssignTask assign;
+        private int iterations;// across runs, so LBG rounds number on from each other
+
+        Lloyd(byte[] blocks, int length, int codebookSize, KMeansOptions options, Random rand) {
+            this.blocks = blocks;
+            this.length = length;
+            this.options = options;
+            this.rand = rand;
+            int blockCount = blocks.length / length;
+            //One accumulator per chunk of blocks, reused every iteration
+            int chunks = options.pool == null ? 1
+                    : Math.max(1, Math.min(options.pool.getParallelism() * 4, blockCount / MIN_CHUNK_BLOCKS));
+            this.assign = new AssignTask(blocks, length, blockCount, new long[chunks][codebookSize * length],
+                    new int[chunks][codebookSize], new long[chunks], new long[chunks], new int[chunks], 0, chunks);
+        }
+
+        // Refine the first size centroids in place until the distortion stops dropping by more than the tolerance
+        // (never with tolerance 0) or maxIterations is reached, returns the cluster sizes of the last assignment
+        int[] run(int[] centroids, int size) {
+            long[][] sums = assign.sums;
+            int[][] counts = assign.counts;
+            int chunks = sums.length;
+            long previous = Long.MAX_VALUE;
+            for (int iter = 0; iter < options.maxIterations; iter++) {
+                long start = System.nanoTime();
+                // Assign blocks to nearest centroid and accumulate them per chunk
+                assign.centroids = centroids;
+                assign.search = new CodebookSearch(Arrays.copyOf(centroids, size * length), size);
+                if (options.pool == null) {
+                    assign.accumulate(0);
+                } else {
+                    options.pool.invoke(assign);
+                    assign.reinitialize();
+                }
+
+                // Merge the chunk sums into the first chunk, the farthest block keeps the lowest offset on ties
+                long distortion = assign.distortion[0];
+                for (int c = 1; c < chunks; c++) {
+                    for (int j = 0; j < size * length; j++) {
+                        sums[0][j] += sums[c][j];
+                    }
+                    for (int i = 0; i < size; i++) {
+                        counts[0][i] += counts[c][i];
+                    }
+                    distortion += assign.distortion[c];
+                    if (assign.farthest[c] > assign.farthest[0]) {
+                        assign.farthest[0] = assign.farthest[c];
+                        assign.farthestOffset[0] = assign.farthestOffset[c];
+                    }
+                }
+
+                // Update centroids. An empty cluster is reseeded: the first with the block worst served by the
+                // current centroids, any others with random blocks.
+                boolean reseeded = false;
+                for (int i = 0; i < size; i++) {
+                    if (counts[0][i] > 0) {
+                        for (int j = 0; j < length; j++) {
+                            centroids[i * length + j] = (int) (sums[0][i * length + j] / counts[0][i]);
+                        }
+                    } else {
+                        int offset = reseeded ? rand.nextInt(blocks.length / length) * length
+                                : assign.farthestOffset[0];
+                        for (int j = 0; j < length; j++) {
+                            centroids[i * length + j] = blocks[offset + j] & 0xFF;
+                        }
+                        reseeded = true;
+                    }
+                }
+                iterations++;
+                long elapsed = System.nanoTime() - start;
+                double mse = (double) distortion / blocks.length;
+                Metrics.kMeansIteration(iterations, size, mse, elapsed);
+                if (options.listener != null) {
+                    options.listener.iteration(iterations, size, mse, elapsed);
+                }
+                if (options.tolerance > 0 && !reseeded && previous - distortion <= options.tolerance * previous) {
+                    break;
+                }
+                previous = distortion;
+            }
+            return Arrays.copyOf(counts[0], size);
+        }
+    }
+
+    // Assignment step over a range of chunks, each chunk accumulating into its own sums, counts and distortion
+    private static class AssignTask extends RecursiveAction {
+        private final byte[] blocks;
+        private final int length;
+        private final int blockCount;
+        private final long[][] sums;
+        private final int[][] counts;
+        private final long[] distortion;// squared error of each chunk
+        private final long[] farthest;// largest squared error of a single block in each chunk
+        private final int[] farthestOffset;
+        private final int fromChunk;
+        private final int toChunk;
+        private int[] centroids;// current centroids and their search, replaced every iteration
+        private CodebookSearch search;
+
+        AssignTask(byte[] blocks, int length, int blockCount, long[][] sums, int[][] counts, long[] distortion, long[] farthest,
+                   int[] farthestOffset, int fromChunk, int toChunk) {
+            this.blocks = blocks;
+            this.length = length;
+            this.blockCount = blockCount;
+            this.sums = sums;
+            this.counts = counts;
+            this.distortion = distortion;
+            this.farthest = farthest;
+            this.farthestOffset = farthestOffset;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
         }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                accumulate(fromChunk);
+                return;
+            }
+            int mid = (fromChunk + toChunk) >>> 1;
+            AssignTask left = new AssignTask(blocks, length, blockCount, sums, counts, distortion, farthest,
+                    farthestOffset, fromChunk, mid);
+            AssignTask right = new AssignTask(blocks, length, blockCount, sums, counts, distortion, farthest,
+                    farthestOffset, mid, toChunk);
+            left.centroids = centroids;
+            right.centroids = centroids;
+            left.search = search;
+            right.search = search;
+            invokeAll(left, right);
+        }
+
+        // Assign the blocks of one chunk and accumulate them in place
+        void accumulate(int chunk) {
+            long[] chunkSums = sums[chunk];
+            int[] chunkCounts = counts[chunk];
+            Arrays.fill(chunkSums, 0);
+            Arrays.fill(chunkCounts, 0);
+            long chunkDistortion = 0;
+            int worst = -1;
+            int worstOffset = 0;
+            int from = (int) ((long) blockCount * chunk / sums.length) * length;
+            int to = (int) ((long) blockCount * (chunk + 1) / sums.length) * length;
+            for (int offset = from; offset < to; offset += length) {
+                int nearest = search.nearest(blocks, offset);
+                int base = nearest * length;
+                int d = 0;
+                for (int j = 0; j < length; j++) {
+                    int value = blocks[offset + j] & 0xFF;
+                    chunkSums[base + j] += value;
+                    int diff = value - centroids[base + j];
+                    d += diff * diff;
+                }
+                chunkCounts[nearest]++;
+                chunkDistortion += d;
+                if (d > worst) {
+                    worst = d;
+                    worstOffset = offset;
+                }
+            }
+            distortion[chunk] = chunkDistortion;
+            farthest[chunk] = worst;
+            farthestOffset[chunk] = worstOffset;
+        }
+    }
+
+    // Compress packed blocks to one codebook index per block
+    public static int[] compressComponent(byte[] blocks, int[][] codebook) {
+        return compressComponent(blocks, codebook, null);
+    }
+
+    // Compress packed blocks, encoding block ranges in parallel on the pool (null runs serially).
+    // The block length is the codebook's vector length.
+    public static int[] compressComponent(byte[] blocks, int[][] codebook, ForkJoinPool pool) {
+        return compressComponent(blocks, Quantizer.flat(codebook), pool);
+    }
+
+    // Compress packed blocks with any quantizer; the indices refer to quantizer.codebook()
+    public static int[] compressComponent(byte[] blocks, Quantizer quantizer, ForkJoinPool pool) {
+        int length = quantizer.codebook()[0].length;
+        int[] indices = new int[blocks.length / length];
+        encode(new EncodeTask(blocks, length, quantizer, indices, null, 0, indices.length), pool);
         return indices;
     }
+
+    // Compress packed blocks straight into a stream of ceil(log2(codebook size))-bit indices
+    public static IndexStream compress(byte[] blocks, int[][] codebook, ForkJoinPool pool) {
+        return compress(blocks, Quantizer.flat(codebook), pool);
+    }
+
+    public static IndexStream compress(byte[] blocks, Quantizer quantizer, ForkJoinPool pool) {
+        int[][] codebook = quantizer.codebook();
+        IndexStream stream = new IndexStream(blocks.length / codebook[0].length, IndexStream.bitsFor(codebook.length));
+        encode(new EncodeTask(blocks, codebook[0].length, quantizer, null, stream, 0, stream.size()), pool);
+        return stream;
+    }
+
+    private static void encode(EncodeTask encode, ForkJoinPool pool) {
+        if (pool == null) {
+            encode.encodeRange();
+        } else {
+            pool.invoke(encode);
+        }
+    }
+
+    // Mean squared error per pixel value of quantizing the packed blocks with the codebook
+    public static double meanSquaredError(byte[] blocks, int[][] codebook, ForkJoinPool pool) {
+        return meanSquaredError(blocks, Quantizer.flat(codebook), pool);
+    }
+
+    // Mean squared error per pixel value of the codewords the quantizer picks for the packed blocks
+    public static double meanSquaredError(byte[] blocks, Quantizer quantizer, ForkJoinPool pool) {
+        if (blocks.length == 0) {
+            return 0;
+        }
+        int[][] codebook = quantizer.codebook();
+        int length = codebook[0].length;
+        int[] indices = compressComponent(blocks, quantizer, pool);
+        long sum = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int[] codeVector = codebook[indices[i]];
+            for (int j = 0; j < length; j++) {
+                int diff = (blocks[i * length + j] & 0xFF) - codeVector[j];
+                sum += diff * diff;
+            }
+        }
+        return (double) sum / blocks.length;
+    }
+
+    // Encodes a range of blocks into an index array or an index stream, each task writing only its own slice.
+    // Ranges are split on multiples of 64 blocks so that tasks never share a word of the stream.
+    private static class EncodeTask extends RecursiveAction {
+        private final byte[] blocks;
+        private final int length;
+        private final Quantizer quantizer;
+        private final int[] indices;
+        private final IndexStream stream;
+        private final int from;
+        private final int to;
+
+        EncodeTask(byte[] blocks, int length, Quantizer quantizer, int[] indices, IndexStream stream, int from,
+                   int to) {
+            this.blocks = blocks;
+            this.length = length;
+            this.quantizer = quantizer;
+            this.indices = indices;
+            this.stream = stream;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= MIN_CHUNK_BLOCKS) {
+                encodeRange();
+                return;
+            }
+            int mid = ((from + to) >>> 1) & ~63;
+            invokeAll(new EncodeTask(blocks, length, quantizer, indices, stream, from, mid),
+                    new EncodeTask(blocks, length, quantizer, indices, stream, mid, to));
+        }
+
+        void encodeRange() {
+            long start = Metrics.start();
+            byte[] scratch = new byte[length];
+            for (int i = from; i < to; i++) {
+                int nearest = quantizer.encode(blocks, i * length, scratch);
+                if (stream != null) {
+                    stream.set(i, nearest);
+                } else {
+                    indices[i] = nearest;
+                }
+            }
+            Metrics.stop("search", start);
+            Metrics.count("search.blocks", to - from);
+        }
+    }
 }
\ No newline at end of file
@@ -1,55 +1,111 @@
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 
 public class YUVConverter {
+    // Fixed-point (16.16) coefficients of the RGB <-> YUV conversion
+    private static final int Y_R = 19595, Y_G = 38470, Y_B = 7471;// 0.299, 0.587, 0.114
+    private static final int U_R = -9634, U_G = -18940, U_B = 28574;// -0.147, -0.289, 0.436
+    private static final int V_R = 40305, V_G = -33751, V_B = -6554;// 0.615, -0.515, -0.100
+    private static final int R_V = 74711;// 1.140
+    private static final int G_U = -25887, G_V = -38076;// -0.395, -0.581
+    private static final int B_U = 133169;// 2.032
+    private static final int OFFSET_128 = 128 << 16;
+
+
     // Convert RGB image to YUV components
     public static BufferedImage[] rgbToYUV(BufferedImage rgbImage) {
         int width = rgbImage.getWidth();
         int height = rgbImage.getHeight();
-        BufferedImage yImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-        BufferedImage uImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-        BufferedImage vImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[][] rgb = ImageProcessor.extractPlanes(rgbImage, "RGB");
+        byte[][] yuv = rgbToYUV(rgb[0], rgb[1], rgb[2], width, height);
+        return new BufferedImage[]{
+                ImageProcessor.grayImage(yuv[0], width, height),
+                ImageProcessor.grayImage(yuv[1], width, height),
+                ImageProcessor.grayImage(yuv[2], width, height)};
+    }
+
+
+    // Convert R, G, B planes to full-size Y, U, V planes
+    public static byte[][] rgbToYUV(byte[] r, byte[] g, byte[] b, int width, int height) {
+        byte[] yPlane = new byte[width * height];
+        byte[] uPlane = new byte[width * height];
+        byte[] vPlane = new byte[width * height];
+        for (int i = 0; i < width * height; i++) {
+            int red = r[i] & 0xFF;
+            int green = g[i] & 0xFF;
+            int blue = b[i] & 0xFF;
+            yPlane[i] = (byte) lumaOf(red, green, blue);
+            uPlane[i] = (byte) clamp((U_R * red + U_G * green + U_B * blue + OFFSET_128) >> 16);
+            vPlane[i] = (byte) clamp((V_R * red + V_G * green + V_B * blue + OFFSET_128) >> 16);
+        }
+        return new byte[][]{yPlane, uPlane, vPlane};
+    }
+
+
+    // Convert an RGB image straight to a full-size Y plane and 4:2:0 subsampled U and V planes
+    public static byte[][] rgbToYUV420(BufferedImage rgbImage) {
+        byte[][] rgb = ImageProcessor.extractPlanes(rgbImage, "RGB");
+        return rgbToYUV420(rgb[0], rgb[1], rgb[2], rgbImage.getWidth(), rgbImage.getHeight());
+    }
 
 
-        //Loop over every pixel in the image
+    // Convert R, G, B planes to Y (width * height) and U, V (width/2 * height/2) in one pass.
+    // Chroma is only computed at the even pixels that subsample() keeps.
+    public static byte[][] rgbToYUV420(byte[] r, byte[] g, byte[] b, int width, int height) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        byte[] yPlane = new byte[width * height];
+        byte[] uPlane = new byte[chromaWidth * chromaHeight];
+        byte[] vPlane = new byte[chromaWidth * chromaHeight];
         for (int y = 0; y < height; y++) {
+            int row = y * width;
             for (int x = 0; x < width; x++) {
-                int rgb = rgbImage.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = rgb & 0xFF;
-
-
-                // RGB to YUV conversion
-                int Y = (int) (0.299 * r + 0.587 * g + 0.114 * b);
-                int U = (int) (-0.147 * r - 0.289 * g + 0.436 * b + 128);
-                int V = (int) (0.615 * r - 0.515 * g - 0.100 * b + 128);
-
-                // Ensure Y, U, and V values are within the valid range
-                Y = Math.max(0, Math.min(255, Y));
-                U = Math.max(0, Math.min(255, U));
-                V = Math.max(0, Math.min(255, V));
-
-                // Set the Y, U, and V values in their respective images
-                yImage.setRGB(x, y, (Y << 16) | (Y << 8) | Y);
-                uImage.setRGB(x, y, (U << 16) | (U << 8) | U);
-                vImage.setRGB(x, y, (V << 16) | (V << 8) | V);
+                int i = row + x;
+                yPlane[i] = (byte) lumaOf(r[i] & 0xFF, g[i] & 0xFF, b[i] & 0xFF);
+            }
+            if ((y & 1) == 0 && y / 2 < chromaHeight) {
+                int chromaRow = (y / 2) * chromaWidth;
+                for (int x = 0; x < chromaWidth; x++) {
+                    int i = row + 2 * x;
+                    int red = r[i] & 0xFF;
+                    int green = g[i] & 0xFF;
+                    int blue = b[i] & 0xFF;
+                    uPlane[chromaRow + x] = (byte) clamp((U_R * red + U_G * green + U_B * blue + OFFSET_128) >> 16);
+                    vPlane[chromaRow + x] = (byte) clamp((V_R * red + V_G * green + V_B * blue + OFFSET_128) >> 16);
+                }
             }
         }
-        return new BufferedImage[]{yImage, uImage, vImage};
+        return new byte[][]{yPlane, uPlane, vPlane};
+    }
+
+    private static int lumaOf(int r, int g, int b) {
+        return (Y_R * r + Y_G * g + Y_B * b) >> 16;
+    }
+
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
     }
 
 
     // Subsample U and V components to 50% width and height
     public static BufferedImage subsample(BufferedImage component) {
-        int newWidth = component.getWidth() / 2;
-        int newHeight = component.getHeight() / 2;
-        BufferedImage subsampled = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_BYTE_GRAY);
-        //Loop over the new image’s pixels
+        int width = component.getWidth();
+        int height = component.getHeight();
+        byte[] plane = subsample(ImageProcessor.extractPlanes(component, "R")[0], width, height);
+        return ImageProcessor.grayImage(plane, width / 2, height / 2);
+    }
+
+
+    // Keep every second pixel of every second row of a plane
+    public static byte[] subsample(byte[] plane, int width, int height) {
+        int newWidth = width / 2;
+        int newHeight = height / 2;
+        byte[] subsampled = new byte[newWidth * newHeight];
         for (int y = 0; y < newHeight; y++) {
             for (int x = 0; x < newWidth; x++) {
-                int value = (component.getRGB(x * 2, y * 2) >> 16) & 0xFF;
-                subsampled.setRGB(x, y, (value << 16) | (value << 8) | value);
+                subsampled[y * newWidth + x] = plane[(y * 2) * width + x * 2];
             }
         }
         return subsampled;
@@ -58,14 +114,19 @@ public class YUVConverter {
 
     // Upsample U or V component back to original size
     public static BufferedImage upsample(BufferedImage component, int targetWidth, int targetHeight) {
-        BufferedImage upsampled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_BYTE_GRAY);
-        //Loop over each pixel in the upsampled image
+        byte[] plane = upsample(ImageProcessor.extractPlanes(component, "R")[0], component.getWidth(),
+                component.getHeight(), targetWidth, targetHeight);
+        return ImageProcessor.grayImage(plane, targetWidth, targetHeight);
+    }
+
+
+    // Nearest-neighbour upsample of a plane, repeating the last row and column past the edge
+    public static byte[] upsample(byte[] plane, int width, int height, int targetWidth, int targetHeight) {
+        byte[] upsampled = new byte[targetWidth * targetHeight];
         for (int y = 0; y < targetHeight; y++) {
+            int srcRow = Math.min(y / 2, height - 1) * width;
             for (int x = 0; x < targetWidth; x++) {
-                int srcX = Math.min(x / 2, component.getWidth() - 1);
-                int srcY = Math.min(y / 2, component.getHeight() - 1);
-                int value = (component.getRGB(srcX, srcY) >> 16) & 0xFF;
-                upsampled.setRGB(x, y, (value << 16) | (value << 8) | value);
+                upsampled[y * targetWidth + x] = plane[srcRow + Math.min(x / 2, width - 1)];
             }
         }
         return upsampled;
@@ -76,29 +137,38 @@ public class YUVConverter {
     public static BufferedImage yuvToRGB(BufferedImage yImage, BufferedImage uImage, BufferedImage vImage) {
         int width = yImage.getWidth();
         int height = yImage.getHeight();
-        BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        return yuvToRGB(ImageProcessor.extractPlanes(yImage, "R")[0], ImageProcessor.extractPlanes(uImage, "R")[0],
+                ImageProcessor.extractPlanes(vImage, "R")[0], width, height, width, height);
+    }
 
 
+    // Upsample 4:2:0 U and V, convert to RGB and pack the output image in one pass
+    public static BufferedImage yuv420ToRGB(byte[] yPlane, byte[] uPlane, byte[] vPlane, int width, int height) {
+        return yuvToRGB(yPlane, uPlane, vPlane, width, height, width / 2, height / 2);
+    }
+
+
+    // Convert Y (width * height) and U, V (chromaWidth * chromaHeight) planes to an RGB image.
+    // Chroma is either full size or half size, with the same edge handling as upsample().
+    public static BufferedImage yuvToRGB(byte[] yPlane, byte[] uPlane, byte[] vPlane, int width, int height,
+                                         int chromaWidth, int chromaHeight) {
+        BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) rgbImage.getRaster().getDataBuffer()).getData();
+        int shift = chromaWidth == width ? 0 : 1;
         for (int y = 0; y < height; y++) {
+            int chromaRow = Math.min(y >> shift, chromaHeight - 1) * chromaWidth;
             for (int x = 0; x < width; x++) {
-                int Y = (yImage.getRGB(x, y) >> 16) & 0xFF;
-                int U = (uImage.getRGB(x, y) >> 16) & 0xFF;
-                int V = (vImage.getRGB(x, y) >> 16) & 0xFF;
+                int c = chromaRow + Math.min(x >> shift, chromaWidth - 1);
+                int luma = (yPlane[y * width + x] & 0xFF) << 16;
+                int u = (uPlane[c] & 0xFF) - 128;
+                int v = (vPlane[c] & 0xFF) - 128;
 
 
                 // YUV to RGB conversion
-                int r = (int) (Y + 1.140 * (V - 128));
-                int g = (int) (Y - 0.395 * (U - 128) - 0.581 * (V - 128));
-                int b = (int) (Y + 2.032 * (U - 128));
-
-
-                r = Math.max(0, Math.min(255, r));
-                g = Math.max(0, Math.min(255, g));
-                b = Math.max(0, Math.min(255, b));
-
-
-                int rgb = (r << 16) | (g << 8) | b;
-                rgbImage.setRGB(x, y, rgb);
+                int r = clamp((luma + R_V * v) >> 16);
+                int g = clamp((luma + G_U * u + G_V * v) >> 16);
+                int b = clamp((luma + B_U * u) >> 16);
+                data[y * width + x] = (r << 16) | (g << 8) | b;
             }
         }
         return rgbImage;